@@ -0,0 +1,81 @@
+/**
+ * Axway Appcelerator Titanium - ti.identity
+ * Copyright (c) 2017 by Axway. All Rights Reserved.
+ * Licensed under the terms of the Apache Public License
+ * Please see the LICENSE included with this distribution for details.
+ */
+package ti.identity.benchmark;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Encryption and decryption of values in one piece, the way KeychainEngine.doEncrypt
+ * and doDecrypt do: the IV followed by the encrypted value in a single buffer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CipherBenchmark
+{
+	@Param({ SoftwareKeyProvider.CBC, SoftwareKeyProvider.GCM, SoftwareKeyProvider.CTR })
+	public String transformation;
+
+	@Param({ "32", "1024", "65536", "1048576", "8388608" })
+	public int size;
+
+	private final SoftwareKeyProvider keyProvider = new SoftwareKeyProvider();
+	private SecretKey key;
+	private String blockMode;
+	private Cipher cipher;
+	private byte[] value;
+	private ByteBuffer encryptedData;
+
+	@Setup
+	public void setup() throws GeneralSecurityException
+	{
+		key = SoftwareKeyProvider.generateKey();
+		blockMode = transformation.split("/")[1];
+		cipher = keyProvider.getCipher(transformation);
+		value = new byte[size];
+		new Random(size).nextBytes(value);
+		encryptedData = encrypt();
+	}
+
+	@Benchmark
+	public ByteBuffer encrypt() throws GeneralSecurityException
+	{
+		cipher.init(Cipher.ENCRYPT_MODE, key);
+		final byte[] iv = cipher.getIV();
+		final ByteBuffer data = ByteBuffer.wrap(value);
+		final ByteBuffer encryptedData = ByteBuffer.allocate(iv.length + cipher.getOutputSize(data.remaining()));
+		encryptedData.put(iv);
+		cipher.doFinal(data, encryptedData);
+		encryptedData.flip();
+		return encryptedData;
+	}
+
+	@Benchmark
+	public ByteBuffer decrypt() throws GeneralSecurityException
+	{
+		final ByteBuffer encrypted = encryptedData.duplicate();
+		final byte[] iv = new byte[SoftwareKeyProvider.getIvSize(transformation)];
+		encrypted.get(iv);
+		cipher.init(Cipher.DECRYPT_MODE, key, keyProvider.getParameters(blockMode, iv));
+		final ByteBuffer data = ByteBuffer.allocate(cipher.getOutputSize(encrypted.remaining()));
+		cipher.doFinal(encrypted, data);
+		return data;
+	}
+}
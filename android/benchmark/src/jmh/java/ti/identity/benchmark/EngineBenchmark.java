@@ -0,0 +1,137 @@
+/**
+ * Axway Appcelerator Titanium - ti.identity
+ * Copyright (c) 2017 by Axway. All Rights Reserved.
+ * Licensed under the terms of the Apache Public License
+ * Please see the LICENSE included with this distribution for details.
+ */
+package ti.identity.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import ti.identity.Authenticator;
+import ti.identity.FileKeychainStorage;
+import ti.identity.KeychainEngine;
+import ti.identity.KeychainWriter;
+
+/**
+ * Complete save and read operations of a keychain item, from queueing the operation to
+ * receiving its result, including the module's executor, storage and authentication.
+ *
+ * Each thread owns an item, so several threads measure items contending for the executor.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class EngineBenchmark
+{
+	private static int items;
+
+	@Param({ "none", "authenticated" })
+	public String authentication;
+
+	@Param({ "32", "65536" })
+	public int size;
+
+	private final SynchronousQueue<Map<String, Object>> results = new SynchronousQueue<Map<String, Object>>();
+	private File directory;
+	private KeychainEngine engine;
+	private byte[] value;
+
+	@Setup
+	public void setup() throws GeneralSecurityException, IOException, InterruptedException
+	{
+		directory = Files.createTempDirectory("ti.identity").toFile();
+		final Authenticator authenticator = authentication.equals("authenticated")
+												? new ScriptedAuthenticator(ScriptedAuthenticator.Outcome.AUTHENTICATED, 0)
+												: null;
+		engine = new KeychainEngine(new SoftwareKeyProvider(), authenticator, new FileKeychainStorage(directory),
+									new KeychainEngine.Listener() {
+										@Override
+										public void onResult(String event, Map<String, Object> result)
+										{
+											try {
+												results.put(result);
+											} catch (InterruptedException e) {
+												Thread.currentThread().interrupt();
+											}
+										}
+
+										@Override
+										public void onChunk(Map<String, Object> chunk)
+										{
+										}
+									});
+		synchronized (EngineBenchmark.class)
+		{
+			engine.setIdentifier("benchmark" + items++);
+		}
+		engine.setDurability(KeychainWriter.DURABILITY_RELAXED);
+		if (authenticator != null) {
+			engine.setAccessControlMode(KeychainEngine.ACCESS_CONTROL_TOUCH_ID_ANY);
+		}
+		engine.holdEvents();
+		engine.provisionKey();
+
+		value = new byte[size];
+		new Random(size).nextBytes(value);
+		save();
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		final File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	@Benchmark
+	public Map<String, Object> save() throws InterruptedException
+	{
+		engine.save(value);
+		return take();
+	}
+
+	@Benchmark
+	public Map<String, Object> read() throws InterruptedException
+	{
+		engine.read(KeychainEngine.OUTPUT_BLOB);
+		return take();
+	}
+
+	@Benchmark
+	@Threads(4)
+	public Map<String, Object> readContended() throws InterruptedException
+	{
+		return read();
+	}
+
+	private Map<String, Object> take() throws InterruptedException
+	{
+		final Map<String, Object> result = results.take();
+		if (!Boolean.TRUE.equals(result.get("success"))) {
+			throw new IllegalStateException(String.valueOf(result.get("error")));
+		}
+		return result;
+	}
+}
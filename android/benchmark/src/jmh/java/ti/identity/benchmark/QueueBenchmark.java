@@ -0,0 +1,81 @@
+/**
+ * Axway Appcelerator Titanium - ti.identity
+ * Copyright (c) 2017 by Axway. All Rights Reserved.
+ * Licensed under the terms of the Apache Public License
+ * Please see the LICENSE included with this distribution for details.
+ */
+package ti.identity.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import ti.identity.OperationQueue;
+
+/**
+ * Throughput of the per item operation queue, processed by its owner alone and while
+ * other threads keep adding operations.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class QueueBenchmark
+{
+	// keeps producers from outrunning the owner without bounds
+	private static final int MAXIMUM_DEPTH = 1024;
+	private static final Object OPERATION = new Object();
+
+	@State(Scope.Thread)
+	public static class Owned
+	{
+		final OperationQueue<Object> queue = new OperationQueue<Object>();
+	}
+
+	@State(Scope.Group)
+	public static class Shared
+	{
+		final OperationQueue<Object> queue = new OperationQueue<Object>();
+	}
+
+	/**
+	 * Add an operation and process it, like a single read of an idle item.
+	 */
+	@Benchmark
+	public Object uncontended(Owned state)
+	{
+		final OperationQueue<Object> queue = state.queue;
+		queue.add(OPERATION);
+		final Object operation = queue.acquire();
+		queue.finish(operation);
+		return queue.next();
+	}
+
+	@Benchmark
+	@Group("contended")
+	@GroupThreads(3)
+	public void add(Shared state)
+	{
+		if (state.queue.size() < MAXIMUM_DEPTH) {
+			state.queue.add(OPERATION);
+		}
+	}
+
+	@Benchmark
+	@Group("contended")
+	@GroupThreads(1)
+	public void drain(Shared state, Blackhole blackhole)
+	{
+		final OperationQueue<Object> queue = state.queue;
+		Object operation = queue.acquire();
+		while (operation != null) {
+			blackhole.consume(operation);
+			queue.finish(operation);
+			operation = queue.next();
+		}
+	}
+}
@@ -0,0 +1,66 @@
+/**
+ * Axway Appcelerator Titanium - ti.identity
+ * Copyright (c) 2017 by Axway. All Rights Reserved.
+ * Licensed under the terms of the Apache Public License
+ * Please see the LICENSE included with this distribution for details.
+ */
+package ti.identity.benchmark;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Cipher;
+import ti.identity.Authenticator;
+import ti.identity.KeychainEngine;
+
+/**
+ * Answers authentications with a fixed outcome after an optional delay, like a user
+ * confirming or cancelling the prompt.
+ */
+public class ScriptedAuthenticator implements Authenticator
+{
+	public enum Outcome { AUTHENTICATED, CANCELLED }
+
+	private static final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable runnable)
+		{
+			final Thread thread = new Thread(runnable, "ScriptedAuthenticator");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private final Outcome outcome;
+	private final long delayMillis;
+
+	public ScriptedAuthenticator(Outcome outcome, long delayMillis)
+	{
+		this.outcome = outcome;
+		this.delayMillis = delayMillis;
+	}
+
+	@Override
+	public void authenticate(Cipher cipher, final Callback callback)
+	{
+		executor.execute(new Runnable() {
+			@Override
+			public void run()
+			{
+				if (delayMillis > 0) {
+					try {
+						TimeUnit.MILLISECONDS.sleep(delayMillis);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				if (outcome == Outcome.CANCELLED) {
+					callback.onError(KeychainEngine.ERROR_AUTHENTICATION_FAILED, "Authentication canceled");
+				} else {
+					callback.onAuthenticated();
+				}
+			}
+		});
+	}
+}
@@ -0,0 +1,83 @@
+/**
+ * Axway Appcelerator Titanium - ti.identity
+ * Copyright (c) 2017 by Axway. All Rights Reserved.
+ * Licensed under the terms of the Apache Public License
+ * Please see the LICENSE included with this distribution for details.
+ */
+package ti.identity.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import ti.identity.KeychainStorage;
+import ti.identity.SegmentedCipher;
+
+/**
+ * Streamed encryption and decryption of values in authenticated segments.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SegmentedCipherBenchmark
+{
+	@Param({ "4096", "65536" })
+	public int segmentSize;
+
+	@Param({ "65536", "1048576", "8388608" })
+	public int size;
+
+	private SegmentedCipher segmentedCipher;
+	private byte[] value;
+	private byte[] encrypted;
+
+	@Setup
+	public void setup() throws GeneralSecurityException, IOException
+	{
+		segmentedCipher = new SegmentedCipher(SegmentedCipher.generateKey());
+		value = new byte[size];
+		new Random(size).nextBytes(value);
+
+		final ByteBuffer data = ByteBuffer.allocate((int) SegmentedCipher.getEncryptedSize(size, segmentSize));
+		final KeychainStorage.Producer producer =
+			segmentedCipher.encrypt(new ByteArrayInputStream(value), size, segmentSize, null);
+		ByteBuffer buffer;
+		while ((buffer = producer.next()) != null) {
+			data.put(buffer);
+		}
+		encrypted = data.array();
+	}
+
+	@Benchmark
+	public void encrypt(Blackhole blackhole) throws IOException
+	{
+		final KeychainStorage.Producer producer =
+			segmentedCipher.encrypt(new ByteArrayInputStream(value), size, segmentSize, null);
+		ByteBuffer buffer;
+		while ((buffer = producer.next()) != null) {
+			blackhole.consume(buffer);
+		}
+	}
+
+	@Benchmark
+	public void decrypt(Blackhole blackhole) throws IOException
+	{
+		final SegmentedCipher.Decryptor decryptor = segmentedCipher.decrypt(ByteBuffer.wrap(encrypted));
+		ByteBuffer segment;
+		while ((segment = decryptor.next()) != null) {
+			blackhole.consume(segment);
+		}
+		decryptor.wipe();
+	}
+}
@@ -0,0 +1,99 @@
+/**
+ * Axway Appcelerator Titanium - ti.identity
+ * Copyright (c) 2017 by Axway. All Rights Reserved.
+ * Licensed under the terms of the Apache Public License
+ * Please see the LICENSE included with this distribution for details.
+ */
+package ti.identity.benchmark;
+
+import java.security.GeneralSecurityException;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import ti.identity.KeyProvider;
+
+/**
+ * Stands in for the Android key store on a JVM with software AES keys held in memory.
+ *
+ * The module's cipher names are mapped to their JCE equivalents, the key store accepts
+ * PKCS7Padding (identical to PKCS5Padding for AES). Keys never require authentication.
+ */
+public class SoftwareKeyProvider implements KeyProvider
+{
+	public static final String CBC = "AES/CBC/PKCS7Padding";
+	public static final String GCM = "AES/GCM/NoPadding";
+	public static final String CTR = "AES/CTR/NoPadding";
+
+	private final ConcurrentHashMap<String, SecretKey> keys = new ConcurrentHashMap<String, SecretKey>();
+
+	public static SecretKey generateKey() throws GeneralSecurityException
+	{
+		final KeyGenerator generator = KeyGenerator.getInstance("AES");
+		generator.init(256);
+		return generator.generateKey();
+	}
+
+	public static int getIvSize(String transformation)
+	{
+		return transformation.equals(GCM) ? 12 : 16;
+	}
+
+	@Override
+	public SecretKey getOrCreateKey(Spec spec) throws GeneralSecurityException
+	{
+		SecretKey key = keys.get(spec.identifier);
+		if (key == null) {
+			final SecretKey generated = generateKey();
+			key = keys.putIfAbsent(spec.identifier, generated);
+			if (key == null) {
+				key = generated;
+			}
+		}
+		return key;
+	}
+
+	@Override
+	public void deleteKey(String identifier)
+	{
+		keys.remove(identifier);
+	}
+
+	@Override
+	public void evictKey(String identifier)
+	{
+	}
+
+	@Override
+	public Cipher getCipher(String transformation) throws GeneralSecurityException
+	{
+		return Cipher.getInstance(transformation.replace("PKCS7Padding", "PKCS5Padding"));
+	}
+
+	@Override
+	public AlgorithmParameterSpec getParameters(String blockMode, byte[] iv)
+	{
+		return blockMode.equals("GCM") ? new GCMParameterSpec(128, iv) : new IvParameterSpec(iv);
+	}
+
+	@Override
+	public boolean isDeviceSecure()
+	{
+		return true;
+	}
+
+	@Override
+	public boolean isUserNotAuthenticated(Exception e)
+	{
+		return false;
+	}
+
+	@Override
+	public boolean isPermanentlyInvalidated(Exception e)
+	{
+		return false;
+	}
+}
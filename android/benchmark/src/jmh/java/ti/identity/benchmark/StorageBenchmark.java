@@ -0,0 +1,115 @@
+/**
+ * Axway Appcelerator Titanium - ti.identity
+ * Copyright (c) 2017 by Axway. All Rights Reserved.
+ * Licensed under the terms of the Apache Public License
+ * Please see the LICENSE included with this distribution for details.
+ */
+package ti.identity.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import ti.identity.FileKeychainStorage;
+import ti.identity.KeychainStorage;
+import ti.identity.VaultKeychainStorage;
+
+/**
+ * Writes and reads of encrypted values through both storage backends.
+ *
+ * Strict writes flush the staged data before committing it like KeychainWriter does,
+ * relaxed writes commit without flushing. Grouped writes depend on concurrent writers
+ * and the module's executor, they are not covered here.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StorageBenchmark
+{
+	private static final String IDENTIFIER = "benchmark";
+
+	@Param({ "file", "vault" })
+	public String storageMode;
+
+	@Param({ "strict", "relaxed" })
+	public String durability;
+
+	@Param({ "32", "1024", "65536", "1048576" })
+	public int size;
+
+	private File directory;
+	private KeychainStorage storage;
+	private byte[] value;
+
+	@Setup
+	public void setup() throws IOException
+	{
+		directory = Files.createTempDirectory("ti.identity").toFile();
+		if (storageMode.equals("vault")) {
+			storage = new VaultKeychainStorage(new File(directory, "keychain.vault"), new Executor() {
+				@Override
+				public void execute(Runnable runnable)
+				{
+					runnable.run();
+				}
+			});
+		} else {
+			storage = new FileKeychainStorage(directory);
+		}
+		value = new byte[size];
+		new Random(size).nextBytes(value);
+		write();
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		final File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	@Benchmark
+	public void write() throws IOException
+	{
+		final KeychainStorage.Staged staged = storage.stage(IDENTIFIER, value.length, new KeychainStorage.Producer() {
+			private boolean produced;
+
+			@Override
+			public ByteBuffer next()
+			{
+				if (produced) {
+					return null;
+				}
+				produced = true;
+				return ByteBuffer.wrap(value);
+			}
+		});
+		if (durability.equals("strict")) {
+			staged.sync();
+		}
+		staged.commit();
+	}
+
+	@Benchmark
+	public ByteBuffer read() throws IOException
+	{
+		return storage.read(IDENTIFIER);
+	}
+}
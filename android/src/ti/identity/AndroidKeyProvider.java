@@ -0,0 +1,82 @@
+/**
+ * Axway Appcelerator Titanium - ti.identity
+ * Copyright (c) 2017 by Axway. All Rights Reserved.
+ * Licensed under the terms of the Apache Public License
+ * Please see the LICENSE included with this distribution for details.
+ */
+package ti.identity;
+
+import android.app.KeyguardManager;
+import android.content.Context;
+import android.security.keystore.KeyPermanentlyInvalidatedException;
+import android.security.keystore.UserNotAuthenticatedException;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.spec.AlgorithmParameterSpec;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import org.appcelerator.titanium.TiApplication;
+
+/**
+ * Keys of the Android key store, provisioned by KeyProvisioner and cached by KeyCache.
+ */
+public class AndroidKeyProvider implements KeyProvider
+{
+	public static final AndroidKeyProvider INSTANCE = new AndroidKeyProvider();
+
+	@Override
+	public SecretKey getOrCreateKey(Spec spec) throws GeneralSecurityException, IOException
+	{
+		return KeyProvisioner.getOrCreateKey(spec);
+	}
+
+	@Override
+	public void deleteKey(String identifier) throws GeneralSecurityException, IOException
+	{
+		KeyCache.deleteKey(identifier);
+	}
+
+	@Override
+	public void evictKey(String identifier)
+	{
+		KeyCache.evict(identifier);
+	}
+
+	@Override
+	public Cipher getCipher(String transformation) throws GeneralSecurityException
+	{
+		return Cipher.getInstance(transformation);
+	}
+
+	@Override
+	public AlgorithmParameterSpec getParameters(String blockMode, byte[] iv)
+	{
+		// the key store only produces 128 bit tags
+		return KeychainEngine.BLOCK_MODE_GCM.equals(blockMode) ? new GCMParameterSpec(128, iv) : new IvParameterSpec(iv);
+	}
+
+	@Override
+	@SuppressWarnings("NewApi")
+	public boolean isDeviceSecure()
+	{
+		final Context context = TiApplication.getAppRootOrCurrentActivity();
+		final KeyguardManager keyguardManager = context != null ? context.getSystemService(KeyguardManager.class) : null;
+		return keyguardManager != null && keyguardManager.isDeviceSecure();
+	}
+
+	@Override
+	@SuppressWarnings("NewApi")
+	public boolean isUserNotAuthenticated(Exception e)
+	{
+		return e instanceof UserNotAuthenticatedException;
+	}
+
+	@Override
+	@SuppressWarnings("NewApi")
+	public boolean isPermanentlyInvalidated(Exception e)
+	{
+		return e instanceof KeyPermanentlyInvalidatedException;
+	}
+}
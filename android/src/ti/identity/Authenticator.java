@@ -0,0 +1,39 @@
+/**
+ * Axway Appcelerator Titanium - ti.identity
+ * Copyright (c) 2017 by Axway. All Rights Reserved.
+ * Licensed under the terms of the Apache Public License
+ * Please see the LICENSE included with this distribution for details.
+ */
+package ti.identity;
+
+import javax.crypto.Cipher;
+
+/**
+ * Asks the user to authenticate before keys requiring authentication can be used,
+ * the biometric prompt on a device.
+ */
+public interface Authenticator
+{
+	interface Callback
+	{
+		void onAuthenticated();
+
+		/**
+		 * The authentication ended without success, cancellations are reported with
+		 * KeychainEngine.ERROR_AUTHENTICATION_FAILED.
+		 */
+		void onError(int code, String message);
+
+		/**
+		 * An attempt was rejected, the authentication continues.
+		 */
+		void onAttemptFailed();
+	}
+
+	/**
+	 * Authenticate the user. The callback may be called on any thread, but never from
+	 * within this call. An initialized cipher is only usable once it was bound to the
+	 * authentication, keys bound to a time window are unlocked without one.
+	 */
+	void authenticate(Cipher cipher, Callback callback);
+}
@@ -0,0 +1,56 @@
+/**
+ * Axway Appcelerator Titanium - ti.identity
+ * Copyright (c) 2017 by Axway. All Rights Reserved.
+ * Licensed under the terms of the Apache Public License
+ * Please see the LICENSE included with this distribution for details.
+ */
+package ti.identity;
+
+import androidx.biometric.BiometricPrompt;
+import javax.crypto.Cipher;
+
+/**
+ * Authenticates through the shared biometric prompt.
+ */
+public class BiometricAuthenticator implements Authenticator
+{
+	private final BiometricPrompt.PromptInfo promptInfo;
+
+	public BiometricAuthenticator(BiometricPrompt.PromptInfo promptInfo)
+	{
+		this.promptInfo = promptInfo;
+	}
+
+	@Override
+	public void authenticate(Cipher cipher, final Callback callback)
+	{
+		SharedBiometricPrompt.authenticate(
+			new BiometricPrompt.AuthenticationCallback() {
+				@Override
+				public void onAuthenticationError(int errorCode, CharSequence errString)
+				{
+					switch (errorCode) {
+						case BiometricPrompt.ERROR_USER_CANCELED:
+						case BiometricPrompt.ERROR_CANCELED:
+						case BiometricPrompt.ERROR_NEGATIVE_BUTTON:
+							errorCode = KeychainEngine.ERROR_AUTHENTICATION_FAILED;
+							break;
+					}
+					callback.onError(errorCode, errString.toString());
+				}
+
+				@Override
+				public void onAuthenticationSucceeded(BiometricPrompt.AuthenticationResult result)
+				{
+					callback.onAuthenticated();
+				}
+
+				@Override
+				public void onAuthenticationFailed()
+				{
+					callback.onAttemptFailed();
+				}
+			},
+			promptInfo, cipher != null ? new BiometricPrompt.CryptoObject(cipher) : null);
+	}
+}
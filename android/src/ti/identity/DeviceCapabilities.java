@@ -0,0 +1,141 @@
+/**
+ * Axway Appcelerator Titanium - ti.identity
+ * Copyright (c) 2017 by Axway. All Rights Reserved.
+ * Licensed under the terms of the Apache Public License
+ * Please see the LICENSE included with this distribution for details.
+ */
+package ti.identity;
+
+import android.app.KeyguardManager;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.os.SystemClock;
+import androidx.biometric.BiometricManager;
+import org.appcelerator.kroll.KrollDict;
+import org.appcelerator.titanium.TiApplication;
+
+/**
+ * Snapshot of the authentication capabilities of the device.
+ *
+ * Querying BiometricManager and KeyguardManager are binder calls and the scanner features go to
+ * the PackageManager, so they are queried once and served from memory. The snapshot is dropped
+ * when the app resumes, since enrollments and the passcode can only change in the settings,
+ * and can be refreshed on demand.
+ */
+public class DeviceCapabilities
+{
+	private static volatile DeviceCapabilities snapshot;
+
+	private final int biometricStatus;
+	private final boolean deviceSecure;
+	private final boolean fingerprintScanner;
+	private final boolean faceScanner;
+	private final boolean irisScanner;
+	private final long created = SystemClock.elapsedRealtime();
+
+	@SuppressWarnings("NewApi")
+	private DeviceCapabilities(Context context)
+	{
+		int status = BiometricManager.BIOMETRIC_ERROR_HW_UNAVAILABLE;
+		boolean secure = false;
+		if (Build.VERSION.SDK_INT >= 23) {
+			status = BiometricManager.from(context).canAuthenticate(BiometricManager.Authenticators.DEVICE_CREDENTIAL
+																	| BiometricManager.Authenticators.BIOMETRIC_STRONG
+																	| BiometricManager.Authenticators.BIOMETRIC_WEAK);
+			try {
+				secure = context.getSystemService(KeyguardManager.class).isDeviceSecure();
+			} catch (Exception e) {
+				// ignore, error gracefully
+			}
+		}
+		biometricStatus = status;
+		deviceSecure = secure;
+
+		final PackageManager pm = context.getPackageManager();
+		fingerprintScanner = pm.hasSystemFeature(PackageManager.FEATURE_FINGERPRINT);
+		faceScanner = pm.hasSystemFeature(PackageManager.FEATURE_FACE);
+		irisScanner = Build.VERSION.SDK_INT >= 29 && pm.hasSystemFeature(PackageManager.FEATURE_IRIS);
+	}
+
+	/**
+	 * The current snapshot, taken now if there is none.
+	 */
+	public static DeviceCapabilities get()
+	{
+		DeviceCapabilities current = snapshot;
+		if (current == null) {
+			current = refresh();
+		}
+		return current;
+	}
+
+	public static DeviceCapabilities refresh()
+	{
+		final DeviceCapabilities current = new DeviceCapabilities(TiApplication.getInstance());
+		snapshot = current;
+		return current;
+	}
+
+	/**
+	 * Drop the snapshot, the next access takes a new one.
+	 */
+	public static void invalidate()
+	{
+		snapshot = null;
+	}
+
+	/**
+	 * Result of BiometricManager.canAuthenticate for biometrics and device credentials.
+	 */
+	public int getBiometricStatus()
+	{
+		return biometricStatus;
+	}
+
+	public boolean canAuthenticate()
+	{
+		return biometricStatus == BiometricManager.BIOMETRIC_SUCCESS;
+	}
+
+	public boolean isDeviceSecure()
+	{
+		return deviceSecure;
+	}
+
+	public boolean hasFingerprintScanner()
+	{
+		return fingerprintScanner;
+	}
+
+	public boolean hasFaceScanner()
+	{
+		return faceScanner;
+	}
+
+	public boolean hasIrisScanner()
+	{
+		return irisScanner;
+	}
+
+	/**
+	 * Milliseconds since the snapshot was taken.
+	 */
+	public long getAge()
+	{
+		return SystemClock.elapsedRealtime() - created;
+	}
+
+	public KrollDict toKrollDict()
+	{
+		KrollDict dict = new KrollDict();
+		dict.put("biometricStatus", biometricStatus);
+		dict.put("canAuthenticate", canAuthenticate());
+		dict.put("deviceSecure", deviceSecure);
+		dict.put("hasFingerprintScanner", fingerprintScanner);
+		dict.put("hasFaceScanner", faceScanner);
+		dict.put("hasIrisScanner", irisScanner);
+		dict.put("age", getAge());
+		return dict;
+	}
+}
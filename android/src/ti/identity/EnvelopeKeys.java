@@ -0,0 +1,114 @@
+/**
+ * Axway Appcelerator Titanium - ti.identity
+ * Copyright (c) 2017 by Axway. All Rights Reserved.
+ * Licensed under the terms of the Apache Public License
+ * Please see the LICENSE included with this distribution for details.
+ */
+package ti.identity;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Unwrapped data keys of envelope namespaces for the current session.
+ *
+ * Items of a namespace encrypt their data in-process with the namespace's random data key.
+ * The data key is stored wrapped by a key store key and only unwrapped once per session,
+ * which is ended by clear() when the app is paused or the module is invalidated. Keys are
+ * held by the alias of their wrapping key, which differs by access control within a namespace.
+ *
+ * Ciphers initialized with a data key hold a copy of it that can not be zeroed. Engines drop
+ * them once their operation completed, and check the generation before using a prepared one.
+ */
+public class EnvelopeKeys
+{
+	public static final int KEY_SIZE = 32;
+
+	private static final Map<String, byte[]> keys = new HashMap<String, byte[]>();
+	private static final ConcurrentHashMap<String, Object> locks = new ConcurrentHashMap<String, Object>();
+	private static long hits;
+	private static long unwraps;
+	private static long clears;
+	private static final AtomicInteger generation = new AtomicInteger();
+
+	/**
+	 * Lock to hold while creating or unwrapping the data key of a wrapping key alias.
+	 */
+	public static Object lock(String alias)
+	{
+		final Object lock = new Object();
+		final Object existing = locks.putIfAbsent(alias, lock);
+		return existing != null ? existing : lock;
+	}
+
+	/**
+	 * Obtain the data key of a wrapping key alias, or null if it has not been unwrapped in this session.
+	 */
+	public static synchronized SecretKeySpec getKey(String alias)
+	{
+		final byte[] key = keys.get(alias);
+		if (key == null) {
+			return null;
+		}
+		hits++;
+		return new SecretKeySpec(key, "AES");
+	}
+
+	/**
+	 * Whether the data key of a wrapping key alias has been unwrapped in this session.
+	 */
+	public static synchronized boolean isUnlocked(String alias)
+	{
+		return keys.containsKey(alias);
+	}
+
+	/**
+	 * Keep an unwrapped data key for the session, the caller should wipe its copy.
+	 */
+	public static synchronized SecretKeySpec putKey(String alias, byte[] key)
+	{
+		final byte[] previous = keys.put(alias, Arrays.copyOf(key, key.length));
+		if (previous != null) {
+			Arrays.fill(previous, (byte) 0);
+		}
+		unwraps++;
+		return new SecretKeySpec(key, "AES");
+	}
+
+	/**
+	 * Changes whenever the data keys are cleared, so holders of a copy can tell it was forgotten.
+	 */
+	public static int getGeneration()
+	{
+		return generation.get();
+	}
+
+	/**
+	 * Zero and forget all data keys.
+	 */
+	public static synchronized void clear()
+	{
+		generation.incrementAndGet();
+		for (byte[] key : keys.values()) {
+			Arrays.fill(key, (byte) 0);
+		}
+		if (!keys.isEmpty()) {
+			clears++;
+		}
+		keys.clear();
+	}
+
+	public static synchronized Map<String, Object> getStatistics()
+	{
+		Map<String, Object> statistics = new HashMap<String, Object>();
+		statistics.put("namespaces", keys.size());
+		statistics.put("hits", hits);
+		statistics.put("unwraps", unwraps);
+		statistics.put("clears", clears);
+		return statistics;
+	}
+}
@@ -0,0 +1,417 @@
+/**
+ * Axway Appcelerator Titanium - ti.identity
+ * Copyright (c) 2017 by Axway. All Rights Reserved.
+ * Licensed under the terms of the Apache Public License
+ * Please see the LICENSE included with this distribution for details.
+ */
+package ti.identity;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Default storage backend, keeps every item in its own "<identifier>_kc.dat" file.
+ *
+ * Files are read with a single channel read into a buffer of the exact file size,
+ * files above MAP_THRESHOLD are memory mapped instead. New data is written to a
+ * temporary file which is renamed over the item's file on commit, so readers and
+ * crashes never observe a partially written file. Synced data is committed by flushing
+ * the directory after the rename, so the rename survives a crash as well.
+ *
+ * Data committed before it was synced (relaxed durability) could be torn by a crash, so
+ * the last synced file of the item is kept as "<identifier>_kc.dat.bak" until the data was
+ * synced, and restored when the storage is opened after a crash. An empty backup stands
+ * for an item that did not exist.
+ */
+public class FileKeychainStorage implements KeychainStorage
+{
+	private static final String SUFFIX = "_kc.dat";
+	private static final String TEMP_SUFFIX = ".tmp";
+	private static final String BACKUP_SUFFIX = ".bak";
+	private static final Pattern TEMP_PATTERN = Pattern.compile(".+_kc-?\\d+\\.tmp");
+	private static final long MAP_THRESHOLD = 256 * 1024;
+
+	// directories can only be opened and files hard linked through java.nio.file, which Android
+	// provides from API 26
+	private static final boolean PATH_SUPPORT = hasPathSupport();
+
+	private static boolean cleanedUp;
+
+	// commits of an item's file waiting for their sync, by path, guards the backups
+	private static final Map<String, Integer> unsynced = new HashMap<String, Integer>();
+
+	private final File directory;
+
+	public FileKeychainStorage(File directory)
+	{
+		this.directory = directory;
+		recover(directory);
+	}
+
+	/**
+	 * Delete temporary files left behind by writes interrupted by a crash and restore the
+	 * backups of files that were not synced. This only happens once per process, before any
+	 * storage could have started writing.
+	 */
+	private static synchronized void recover(File directory)
+	{
+		if (cleanedUp) {
+			return;
+		}
+		cleanedUp = true;
+
+		final File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			final String name = file.getName();
+			if (TEMP_PATTERN.matcher(name).matches()) {
+				file.delete();
+			} else if (name.endsWith(SUFFIX + BACKUP_SUFFIX)) {
+				synchronized (unsynced)
+				{
+					restoreBackup(new File(directory, name.substring(0, name.length() - BACKUP_SUFFIX.length())));
+				}
+			}
+		}
+	}
+
+	private static boolean hasPathSupport()
+	{
+		try {
+			Class.forName("java.nio.file.StandardOpenOption");
+			return true;
+		} catch (ClassNotFoundException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Flush the entries of a directory, e.g. a rename. Older devices flush it with the next
+	 * commit of the file system journal instead.
+	 */
+	private static void syncDirectory(File directory) throws IOException
+	{
+		if (!PATH_SUPPORT) {
+			return;
+		}
+		final FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+		try {
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+	}
+
+	private File getFile(String identifier)
+	{
+		return new File(directory, identifier + SUFFIX);
+	}
+
+	private static File getBackup(File file)
+	{
+		return new File(file.getPath() + BACKUP_SUFFIX);
+	}
+
+	/**
+	 * Keep the synced file of an item before unsynced data replaces it, unless it is kept already.
+	 * The backup is a hard link, or a synced copy where linking fails, so the item's file stays in
+	 * place until it is replaced. Returns whether a backup was created. Must be called holding
+	 * unsynced.
+	 */
+	private static boolean keepBackup(File file) throws IOException
+	{
+		final File backup = getBackup(file);
+		if (backup.exists()) {
+			return false;
+		}
+		if (!file.exists()) {
+			if (!backup.createNewFile()) {
+				throw new IOException("could not keep keychain data");
+			}
+			return true;
+		}
+		if (!linkBackup(file, backup)) {
+			copyBackup(file, backup);
+		}
+		return true;
+	}
+
+	private static boolean linkBackup(File file, File backup)
+	{
+		if (!PATH_SUPPORT) {
+			return false;
+		}
+		try {
+			Files.createLink(backup.toPath(), file.toPath());
+			return true;
+		} catch (IOException | UnsupportedOperationException e) {
+			backup.delete();
+			return false;
+		}
+	}
+
+	/**
+	 * Copy the file, the copy is synced as it may have to replace a torn file after a crash.
+	 */
+	private static void copyBackup(File file, File backup) throws IOException
+	{
+		final RandomAccessFile source = new RandomAccessFile(file, "r");
+		try {
+			final FileOutputStream target = new FileOutputStream(backup);
+			try {
+				final FileChannel channel = source.getChannel();
+				final long size = channel.size();
+				long position = 0;
+				while (position < size) {
+					position += channel.transferTo(position, size - position, target.getChannel());
+				}
+				target.getFD().sync();
+			} finally {
+				target.close();
+			}
+		} catch (IOException e) {
+			backup.delete();
+			throw new IOException("could not keep keychain data", e);
+		} finally {
+			source.close();
+		}
+	}
+
+	/**
+	 * Put the backup of an item back in place. Must be called holding unsynced.
+	 */
+	private static void restoreBackup(File file)
+	{
+		final File backup = getBackup(file);
+		if (backup.length() == 0) {
+			file.delete();
+			backup.delete();
+		} else {
+			backup.renameTo(file);
+		}
+	}
+
+	/**
+	 * Drop the backup of an item, its data is synced. Must be called holding unsynced.
+	 */
+	private static void dropBackup(File file)
+	{
+		final File backup = getBackup(file);
+		if (backup.exists()) {
+			backup.delete();
+		}
+	}
+
+	@Override
+	public ByteBuffer read(String identifier) throws IOException
+	{
+		final RandomAccessFile file = new RandomAccessFile(getFile(identifier), "r");
+		try {
+			final FileChannel channel = file.getChannel();
+			final long size = channel.size();
+			if (size >= MAP_THRESHOLD) {
+				return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			}
+
+			final ByteBuffer buffer = ByteBuffer.allocate((int) size);
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer) < 0) {
+					throw new EOFException("keychain data is truncated");
+				}
+			}
+			buffer.flip();
+			return buffer;
+		} finally {
+			file.close();
+		}
+	}
+
+	@Override
+	public Staged stage(String identifier, long length, Producer producer) throws IOException
+	{
+		final File temp = File.createTempFile(identifier + "_kc", TEMP_SUFFIX, directory);
+		final StagedFile staged = new StagedFile(directory, temp, getFile(identifier));
+		try {
+			final FileChannel channel = staged.out.getChannel();
+			long written = 0;
+			ByteBuffer data;
+			while ((data = producer.next()) != null) {
+				while (data.hasRemaining()) {
+					written += channel.write(data);
+				}
+			}
+			if (written != length) {
+				throw new IOException("keychain data has an unexpected length");
+			}
+		} catch (IOException e) {
+			staged.abort();
+			throw e;
+		}
+		return staged;
+	}
+
+	private static class StagedFile implements Staged
+	{
+		final File directory;
+		final File temp;
+		final File file;
+		final FileOutputStream out;
+		boolean synced;
+		boolean committed;
+
+		StagedFile(File directory, File temp, File file) throws IOException
+		{
+			this.directory = directory;
+			this.temp = temp;
+			this.file = file;
+			this.out = new FileOutputStream(temp);
+		}
+
+		@Override
+		public void sync() throws IOException
+		{
+			if (!committed) {
+				out.getFD().sync();
+				synced = true;
+				return;
+			}
+			boolean flushed = false;
+			try {
+				final RandomAccessFile committedFile = new RandomAccessFile(file, "r");
+				try {
+					committedFile.getFD().sync();
+				} finally {
+					committedFile.close();
+				}
+				syncDirectory(directory);
+				flushed = true;
+			} catch (FileNotFoundException e) {
+				// deleted in the meantime, nothing to flush
+			} finally {
+				synchronized (unsynced)
+				{
+					final String path = file.getPath();
+					final Integer current = unsynced.get(path);
+					final int pending = current != null ? current - 1 : 0;
+					if (pending > 0) {
+						unsynced.put(path, pending);
+					} else {
+						unsynced.remove(path);
+
+						// the backup is kept for a later sync if this one failed
+						if (flushed) {
+							dropBackup(file);
+						}
+					}
+				}
+			}
+		}
+
+		@Override
+		public void commit() throws IOException
+		{
+			out.close();
+			synchronized (unsynced)
+			{
+				final boolean backup = !synced && keepBackup(file);
+				if (!temp.renameTo(file)) {
+					temp.delete();
+					if (backup) {
+						restoreBackup(file);
+					}
+					throw new IOException("could not replace keychain data");
+				}
+				committed = true;
+				if (!synced) {
+					final Integer pending = unsynced.get(file.getPath());
+					unsynced.put(file.getPath(), pending != null ? pending + 1 : 1);
+				}
+			}
+			if (synced) {
+				syncDirectory(directory);
+
+				// unsynced data this write replaced can not be torn anymore
+				synchronized (unsynced)
+				{
+					dropBackup(file);
+				}
+			}
+		}
+
+		@Override
+		public void abort()
+		{
+			try {
+				out.close();
+			} catch (IOException e) {
+				// nothing to do, the file is deleted anyway
+			}
+			temp.delete();
+		}
+	}
+
+	/**
+	 * Every file has to be flushed on its own.
+	 */
+	@Override
+	public boolean isSyncShared()
+	{
+		return false;
+	}
+
+	@Override
+	public boolean exists(String identifier)
+	{
+		return getFile(identifier).exists();
+	}
+
+	@Override
+	public boolean delete(String identifier)
+	{
+		final File file = getFile(identifier);
+		synchronized (unsynced)
+		{
+			final boolean deleted = file.delete();
+			dropBackup(file);
+			return deleted;
+		}
+	}
+
+	@Override
+	public List<String> list()
+	{
+		final List<String> identifiers = new ArrayList<String>();
+		final String[] names = directory.list();
+		if (names != null) {
+			for (String name : names) {
+				if (name.endsWith(SUFFIX) && name.length() > SUFFIX.length()) {
+					identifiers.add(name.substring(0, name.length() - SUFFIX.length()));
+				}
+			}
+		}
+		return identifiers;
+	}
+
+	/**
+	 * Time of the last write of an item in milliseconds, 0 if it does not exist.
+	 */
+	public long getLastModified(String identifier)
+	{
+		return getFile(identifier).lastModified();
+	}
+}
@@ -7,51 +7,38 @@
 package ti.identity;
 
 import android.annotation.SuppressLint;
-import android.app.Activity;
-import android.app.KeyguardManager;
-import android.os.Build;
 import android.os.CancellationSignal;
-import android.security.keystore.KeyGenParameterSpec;
 import android.security.keystore.KeyPermanentlyInvalidatedException;
 import android.security.keystore.KeyProperties;
 import android.util.Base64;
 import androidx.biometric.BiometricManager;
 import androidx.biometric.BiometricPrompt;
-import androidx.fragment.app.FragmentActivity;
-import java.security.KeyStore;
-import java.security.KeyStoreException;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
 import javax.crypto.Cipher;
-import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
 import org.appcelerator.kroll.KrollDict;
 import org.appcelerator.kroll.KrollFunction;
 import org.appcelerator.kroll.KrollObject;
 import org.appcelerator.kroll.common.Log;
-import org.appcelerator.titanium.TiApplication;
 
-public class FingerPrintHelper extends BiometricPrompt.AuthenticationCallback
+public class FingerPrintHelper implements Authenticator.Callback
 {
 
-	protected KeyguardManager mKeyguardManager;
-	protected BiometricManager mBiometricManager;
-	protected KeyStore mKeyStore;
-	protected KeyGenerator mKeyGenerator;
 	protected Cipher mCipher;
 	private static Map<CancellationSignal, KeychainItemProxy> cancellationSignals = new HashMap<>();
-	protected BiometricPrompt.CryptoObject mCryptoObject;
 	private static final String KEY_NAME = "appc_key";
 	private static final String SECRET_MESSAGE = "secret message";
 	private static String TAG = "FingerPrintHelper";
 	private KrollFunction callback;
 	private KrollObject krollObject;
 	protected boolean mSelfCancelled;
-	private boolean mGeneratedKey = false;
 	private TitaniumIdentityModule mModule;
+	private long traced;
+
+	// the cipher was initialized by prepare and is used by the next authentication
+	private boolean cipherPrepared;
 
 	@SuppressWarnings("NewApi")
 	public FingerPrintHelper(TitaniumIdentityModule module)
@@ -61,19 +48,12 @@ public class FingerPrintHelper extends BiometricPrompt.AuthenticationCallback
 		}
 
 		mModule = module;
-		final Activity activity = TiApplication.getAppRootOrCurrentActivity();
-
-		mBiometricManager = BiometricManager.from(activity);
-		mKeyguardManager = activity.getSystemService(KeyguardManager.class);
 
 		try {
-			mKeyStore = KeyStore.getInstance("AndroidKeyStore");
-			mKeyGenerator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, "AndroidKeyStore");
-			mCipher = Cipher.getInstance(KeyProperties.KEY_ALGORITHM_AES + "/" + KeyProperties.BLOCK_MODE_CBC + "/"
-										 + KeyProperties.ENCRYPTION_PADDING_PKCS7);
+			mCipher = AndroidKeyProvider.INSTANCE.getCipher(KeyProperties.KEY_ALGORITHM_AES + "/"
+															+ KeyProperties.BLOCK_MODE_CBC + "/"
+															+ KeyProperties.ENCRYPTION_PADDING_PKCS7);
 
-		} catch (KeyStoreException e) {
-			throw new RuntimeException("Failed to get an instance of KeyStore", e);
 		} catch (Exception e) {
 			throw new RuntimeException("Unknown Ti.Identity exception thrown", e);
 		}
@@ -86,26 +66,13 @@ public class FingerPrintHelper extends BiometricPrompt.AuthenticationCallback
 
 	private boolean canUseDeviceBiometrics()
 	{
-		if ((Build.VERSION.SDK_INT >= 23) && (mBiometricManager != null)) {
-			return mBiometricManager.canAuthenticate(BiometricManager.Authenticators.DEVICE_CREDENTIAL
-													 | BiometricManager.Authenticators.BIOMETRIC_STRONG
-													 | BiometricManager.Authenticators.BIOMETRIC_WEAK)
-				== BiometricManager.BIOMETRIC_SUCCESS;
-		}
-		return false;
+		return DeviceCapabilities.get().canAuthenticate();
 	}
 
 	private boolean canUseDeviceCredentials()
 	{
-		if ((Build.VERSION.SDK_INT >= 23) && (mBiometricManager != null)) {
-			if (mModule.getAuthenticationPolicy() == TitaniumIdentityModule.AUTHENTICATION_POLICY_PASSCODE) {
-				try {
-					return mKeyguardManager.isDeviceSecure();
-				} catch (Exception ex) {
-				}
-			}
-		}
-		return false;
+		return mModule.getAuthenticationPolicy() == TitaniumIdentityModule.AUTHENTICATION_POLICY_PASSCODE
+			&& DeviceCapabilities.get().isDeviceSecure();
 	}
 	public void stopListening()
 	{
@@ -129,10 +96,18 @@ public class FingerPrintHelper extends BiometricPrompt.AuthenticationCallback
 	@SuppressLint("MissingPermission,NewApi")
 	public void startListening(KrollFunction callback, KrollObject obj)
 	{
+		traced = OperationTracer.begin();
 		if (canUseDeviceBiometrics()) {
+			boolean cipherReady = false;
 			try {
-				initCipher();
-				mCryptoObject = new BiometricPrompt.CryptoObject(mCipher);
+				synchronized (this)
+				{
+					if (!cipherPrepared) {
+						initCipher();
+					}
+					cipherPrepared = false;
+				}
+				cipherReady = true;
 			} catch (Exception e) {
 				Log.e(TAG, "Unable to initialize cipher: " + e.getMessage());
 			}
@@ -141,7 +116,7 @@ public class FingerPrintHelper extends BiometricPrompt.AuthenticationCallback
 
 			mSelfCancelled = false;
 
-			if (mCryptoObject != null) {
+			if (cipherReady) {
 				final BiometricPrompt.PromptInfo.Builder promptInfo = new BiometricPrompt.PromptInfo.Builder();
 				promptInfo.setTitle(TitaniumIdentityModule.reason);
 				promptInfo.setDescription(TitaniumIdentityModule.reasonText);
@@ -149,10 +124,7 @@ public class FingerPrintHelper extends BiometricPrompt.AuthenticationCallback
 				promptInfo.setNegativeButtonText(TitaniumIdentityModule.negativeButtonText);
 				promptInfo.setConfirmationRequired(TitaniumIdentityModule.confirmationRequired);
 
-				final Executor executor = Executors.newSingleThreadExecutor();
-				final BiometricPrompt prompt =
-					new BiometricPrompt((FragmentActivity) TiApplication.getAppCurrentActivity(), executor, this);
-				prompt.authenticate(promptInfo.build(), mCryptoObject);
+				new BiometricAuthenticator(promptInfo.build()).authenticate(mCipher, this);
 			} else if (canUseDeviceCredentials()) {
 				startDeviceCredentials();
 			}
@@ -163,6 +135,34 @@ public class FingerPrintHelper extends BiometricPrompt.AuthenticationCallback
 		}
 	}
 
+	/**
+	 * Obtain the key, initialize the cipher and create the prompt ahead of the next authentication.
+	 * Key generation is slow, so this is called off the JS thread.
+	 */
+	public void prepare()
+	{
+		if (canUseDeviceBiometrics()) {
+			try {
+				synchronized (this)
+				{
+					initCipher();
+					cipherPrepared = true;
+				}
+			} catch (Exception e) {
+				Log.e(TAG, "Unable to initialize cipher: " + e.getMessage());
+			}
+		}
+		SharedBiometricPrompt.prepare();
+	}
+
+	/**
+	 * The next authentication initializes the cipher again.
+	 */
+	public synchronized void expirePrepared()
+	{
+		cipherPrepared = false;
+	}
+
 	private void onError(String errMsg)
 	{
 		if (callback != null && krollObject != null) {
@@ -174,7 +174,7 @@ public class FingerPrintHelper extends BiometricPrompt.AuthenticationCallback
 	}
 
 	/**
-	 * Tries to encrypt some data with the generated key in {@link #createKey} which is
+	 * Tries to encrypt some data with the generated key in {@link #initCipher} which
 	 * only works if the user has just authenticated via fingerprint.
 	 */
 	private void tryEncrypt()
@@ -192,21 +192,30 @@ public class FingerPrintHelper extends BiometricPrompt.AuthenticationCallback
 		}
 	}
 
+	private void endTrace()
+	{
+		OperationTracer.end(OperationTracer.STAGE_AUTHENTICATION, null, null, traced);
+		traced = 0;
+	}
+
 	@Override
-	public void onAuthenticationError(int errMsgId, CharSequence errString)
+	public void onError(int code, String message)
 	{
-		onError(errString.toString());
+		endTrace();
+		onError(message);
 	}
 
 	@Override
-	public void onAuthenticationFailed()
+	public void onAttemptFailed()
 	{
+		endTrace();
 		onError("Unable to recognize fingerprint");
 	}
 
 	@Override
-	public void onAuthenticationSucceeded(BiometricPrompt.AuthenticationResult result)
+	public void onAuthenticated()
 	{
+		endTrace();
 		if (canUseDeviceBiometrics()) {
 			tryEncrypt();
 		} else {
@@ -218,54 +227,23 @@ public class FingerPrintHelper extends BiometricPrompt.AuthenticationCallback
 		}
 	}
 
-	/**
-	 * Creates a symmetric key in the Android Key Store which can only be used after the user has
-	 * authenticated with fingerprint.
-	 */
-	@SuppressWarnings("NewApi")
-	protected void createKey()
-	{
-		if (mGeneratedKey) {
-			return;
-		}
-
-		// The enrolling flow for fingerprint. This is where you ask the user to set up fingerprint
-		// for your flow. Use of keys is necessary if you need to know if the set of
-		// enrolled fingerprints has changed.
-		try {
-			mKeyStore.load(null);
-
-			mKeyGenerator.init(
-				new KeyGenParameterSpec.Builder(KEY_NAME, KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
-					.setBlockModes(KeyProperties.BLOCK_MODE_CBC)
-					.setUserAuthenticationRequired(true)
-					.setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_PKCS7)
-					.build());
-
-			mKeyGenerator.generateKey();
-
-			mGeneratedKey = true;
-		} catch (Exception e) {
-			throw new RuntimeException(e);
-		}
-	}
-
 	private void initCipher() throws Exception
 	{
 		try {
 
 			// Create or obtain key.
-			createKey();
+			final SecretKey key = AndroidKeyProvider.INSTANCE.getOrCreateKey(
+				new KeyProvider.Spec(KEY_NAME, KeyProperties.KEY_ALGORITHM_AES, KeyProperties.BLOCK_MODE_CBC,
+									 KeyProperties.ENCRYPTION_PADDING_PKCS7,
+									 KeychainEngine.ACCESS_CONTROL_TOUCH_ID_ANY, 0));
 
 			// Initialize cipher.
-			final SecretKey key = (SecretKey) mKeyStore.getKey(KEY_NAME, null);
 			mCipher.init(Cipher.ENCRYPT_MODE, key);
 
 		} catch (KeyPermanentlyInvalidatedException e) {
 
 			// Remove invalidated key.
-			mGeneratedKey = false;
-			mKeyStore.deleteEntry(KEY_NAME);
+			AndroidKeyProvider.INSTANCE.deleteKey(KEY_NAME);
 
 			// Attempt to re-initialize.
 			initCipher();
@@ -281,19 +259,12 @@ public class FingerPrintHelper extends BiometricPrompt.AuthenticationCallback
 		String error = "";
 		KrollDict response = new KrollDict();
 
-		int canAuthenticate = mBiometricManager.canAuthenticate(BiometricManager.Authenticators.DEVICE_CREDENTIAL
-																| BiometricManager.Authenticators.BIOMETRIC_STRONG
-																| BiometricManager.Authenticators.BIOMETRIC_WEAK);
+		final DeviceCapabilities capabilities = DeviceCapabilities.get();
+		int canAuthenticate = capabilities.getBiometricStatus();
 		boolean hardwareDetected = canAuthenticate != BiometricManager.BIOMETRIC_ERROR_HW_UNAVAILABLE
 								   && canAuthenticate != BiometricManager.BIOMETRIC_ERROR_NO_HARDWARE;
 		boolean hasFingerprints = canAuthenticate != BiometricManager.BIOMETRIC_ERROR_NONE_ENROLLED;
-		boolean hasPasscode = false;
-
-		try {
-			hasPasscode = mKeyguardManager.isDeviceSecure();
-		} catch (Exception e) {
-			// ignore, error gracefully
-		}
+		boolean hasPasscode = capabilities.isDeviceSecure();
 
 		if (!hardwareDetected && policy != TitaniumIdentityModule.AUTHENTICATION_POLICY_PASSCODE) {
 			error = error + "Hardware not detected";
@@ -332,9 +303,6 @@ public class FingerPrintHelper extends BiometricPrompt.AuthenticationCallback
 		KrollDict response = new KrollDict();
 		response = deviceCanAuthenticate(mModule.getAuthenticationPolicy());
 		if (response.getBoolean("canAuthenticate")) {
-			Executor executor = Executors.newSingleThreadExecutor();
-			BiometricPrompt biometricPrompt =
-				new BiometricPrompt((FragmentActivity) TiApplication.getAppCurrentActivity(), executor, this);
 			BiometricPrompt.PromptInfo promptInfo =
 				new BiometricPrompt.PromptInfo.Builder()
 					.setTitle("Enter your device credentials")
@@ -342,7 +310,7 @@ public class FingerPrintHelper extends BiometricPrompt.AuthenticationCallback
 											  | BiometricManager.Authenticators.BIOMETRIC_STRONG
 											  | BiometricManager.Authenticators.BIOMETRIC_WEAK)
 					.build();
-			biometricPrompt.authenticate(promptInfo);
+			new BiometricAuthenticator(promptInfo).authenticate(null, this);
 		} else if (response.containsKey("error")) {
 			onError(response.getString("error"));
 		}
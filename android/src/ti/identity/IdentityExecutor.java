@@ -0,0 +1,362 @@
+/**
+ * Axway Appcelerator Titanium - ti.identity
+ * Copyright (c) 2017 by Axway. All Rights Reserved.
+ * Licensed under the terms of the Apache Public License
+ * Please see the LICENSE included with this distribution for details.
+ */
+package ti.identity;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Module owned executors for keychain work and for authentication callbacks.
+ *
+ * The pool is bounded in threads, idle threads time out, and it is shut down together with
+ * the module. It is recreated on the next use afterwards.
+ *
+ * Keychain operations are submitted as Tasks and at most MAX_QUEUE_DEPTH of them wait for a
+ * thread. Beyond that they wait for room, are rejected, or take the place of the oldest queued
+ * read, depending on the backpressure mode. Other work is never held back. Pool threads never
+ * wait for room and run their submissions themselves, so the pool can not block on its own
+ * queue. The UI thread never waits or runs operations either, in the block and caller runs
+ * modes its operations take the place of the oldest queued read or are rejected, so the queue
+ * stays bounded.
+ *
+ * Authentication callbacks run on a separate executor, so a busy pool never delays them and
+ * they never hold up the thread delivering them.
+ */
+public class IdentityExecutor
+{
+	public static final int BACKPRESSURE_BLOCK = 0;
+	public static final int BACKPRESSURE_REJECT = 1;
+	public static final int BACKPRESSURE_DROP_OLDEST_READ = 2;
+	public static final int BACKPRESSURE_CALLER_RUNS = 3;
+
+	private static final String[] NAMES = { "block", "reject", "dropOldestRead", "callerRuns" };
+	private static final int MAX_THREADS = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+	private static final int MAX_QUEUE_DEPTH = 64;
+	private static final long KEEP_ALIVE_SECONDS = 30;
+
+	private static Pool executor;
+	private static ThreadPoolExecutor promptExecutor;
+	private static volatile int backpressure = BACKPRESSURE_BLOCK;
+	private static volatile Thread uiThread;
+
+	private static final AtomicLong blocked = new AtomicLong();
+	private static final AtomicLong rejected = new AtomicLong();
+	private static final AtomicLong dropped = new AtomicLong();
+	private static final AtomicLong callerRuns = new AtomicLong();
+
+	/**
+	 * Keychain operation that can be turned down when the queue is full.
+	 */
+	public interface Task extends Runnable
+	{
+		/**
+		 * Whether the task only reads, so it may be dropped for newer work.
+		 */
+		boolean isRead();
+
+		/**
+		 * The task will not run, complete its operations with an error.
+		 */
+		void reject();
+	}
+
+	private static class Worker extends Thread
+	{
+		Worker(Runnable runnable, String name)
+		{
+			super(runnable, name);
+			setDaemon(true);
+		}
+	}
+
+	private static class Factory implements ThreadFactory
+	{
+		private final String prefix;
+		private final AtomicInteger count = new AtomicInteger();
+
+		Factory(String prefix)
+		{
+			this.prefix = prefix;
+		}
+
+		@Override
+		public Thread newThread(Runnable runnable)
+		{
+			return new Worker(runnable, prefix + count.incrementAndGet());
+		}
+	}
+
+	// only reached once the pool is shut down, its queue is not bounded
+	private static final RejectedExecutionHandler shutdownHandler = new RejectedExecutionHandler() {
+		@Override
+		public void rejectedExecution(Runnable runnable, ThreadPoolExecutor pool)
+		{
+			if (runnable instanceof Task) {
+				rejected.incrementAndGet();
+				((Task) runnable).reject();
+			}
+		}
+	};
+
+	/**
+	 * Applies the backpressure to Tasks and records how long the pool threads are busy, for
+	 * the utilization.
+	 */
+	private static class Pool extends ThreadPoolExecutor
+	{
+		final long created = System.nanoTime();
+		final AtomicLong busyTime = new AtomicLong();
+		final ThreadLocal<Long> started = new ThreadLocal<Long>();
+
+		// Tasks submitted and not started yet, guarded by room
+		private final Object room = new Object();
+		private int queuedTasks;
+
+		Pool()
+		{
+			super(MAX_THREADS, MAX_THREADS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+				  new LinkedBlockingQueue<Runnable>(), new Factory("ti.identity-"), shutdownHandler);
+		}
+
+		@Override
+		public void execute(Runnable runnable)
+		{
+			if (!(runnable instanceof Task)) {
+				super.execute(runnable);
+				return;
+			}
+			final Task task = (Task) runnable;
+			final Thread thread = Thread.currentThread();
+			boolean run = false;
+			boolean reject = false;
+			Task replaced = null;
+			synchronized (room)
+			{
+				if (queuedTasks >= MAX_QUEUE_DEPTH && !isShutdown()) {
+					int mode = backpressure;
+					if (thread == uiThread && (mode == BACKPRESSURE_BLOCK || mode == BACKPRESSURE_CALLER_RUNS)) {
+						mode = BACKPRESSURE_DROP_OLDEST_READ;
+					}
+					if (thread instanceof Worker || mode == BACKPRESSURE_CALLER_RUNS) {
+						run = true;
+					} else if (mode == BACKPRESSURE_BLOCK) {
+						reject = !awaitRoom();
+					} else if (mode == BACKPRESSURE_DROP_OLDEST_READ) {
+						replaced = removeOldestRead();
+						reject = replaced == null;
+					} else {
+						reject = true;
+					}
+				}
+				if (!run && !reject) {
+					queuedTasks++;
+				}
+			}
+			if (run) {
+				callerRuns.incrementAndGet();
+				task.run();
+				return;
+			}
+			if (reject) {
+				rejected.incrementAndGet();
+				task.reject();
+				return;
+			}
+			super.execute(task);
+
+			// rejecting may submit the item's following operations, the slot is taken already
+			if (replaced != null) {
+				dropped.incrementAndGet();
+				replaced.reject();
+			}
+		}
+
+		/**
+		 * Wait until a queued Task started, returns false if interrupted.
+		 */
+		private boolean awaitRoom()
+		{
+			blocked.incrementAndGet();
+			try {
+				while (queuedTasks >= MAX_QUEUE_DEPTH && !isShutdown()) {
+					room.wait();
+				}
+				return true;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+
+		/**
+		 * Take the oldest queued read out of the queue, returns null if no read is queued.
+		 */
+		private Task removeOldestRead()
+		{
+			for (Runnable queued : getQueue()) {
+				if (queued instanceof Task && ((Task) queued).isRead() && getQueue().remove(queued)) {
+					queuedTasks--;
+					return (Task) queued;
+				}
+			}
+			return null;
+		}
+
+		@Override
+		protected void beforeExecute(Thread thread, Runnable runnable)
+		{
+			if (runnable instanceof Task) {
+				synchronized (room)
+				{
+					queuedTasks--;
+					room.notify();
+				}
+			}
+			started.set(System.nanoTime());
+		}
+
+		@Override
+		protected void afterExecute(Runnable runnable, Throwable throwable)
+		{
+			final Long start = started.get();
+			if (start != null) {
+				busyTime.addAndGet(System.nanoTime() - start);
+			}
+		}
+
+		@Override
+		public void shutdown()
+		{
+			super.shutdown();
+			synchronized (room)
+			{
+				room.notifyAll();
+			}
+		}
+
+		int getQueuedTasks()
+		{
+			synchronized (room)
+			{
+				return queuedTasks;
+			}
+		}
+
+		/**
+		 * Share of the capacity of all threads spent running tasks since the pool was created.
+		 */
+		double getUtilization()
+		{
+			final long capacity = (System.nanoTime() - created) * MAX_THREADS;
+			return capacity > 0 ? Math.min(1.0, (double) busyTime.get() / capacity) : 0;
+		}
+	}
+
+	public static synchronized ExecutorService get()
+	{
+		if (executor == null || executor.isShutdown()) {
+			executor = new Pool();
+			executor.allowCoreThreadTimeOut(true);
+		}
+		return executor;
+	}
+
+	/**
+	 * Executor of authentication callbacks, one thread with an unbounded queue. It is not bounded
+	 * like the pool, only the one prompt shown at a time posts its callbacks to it.
+	 */
+	public static synchronized ExecutorService getPromptExecutor()
+	{
+		if (promptExecutor == null || promptExecutor.isShutdown()) {
+			promptExecutor = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+													new LinkedBlockingQueue<Runnable>(),
+													new Factory("ti.identity-prompt-"));
+			promptExecutor.allowCoreThreadTimeOut(true);
+		}
+		return promptExecutor;
+	}
+
+	public static synchronized void shutdown()
+	{
+		if (executor != null) {
+			executor.shutdown();
+			executor = null;
+		}
+		if (promptExecutor != null) {
+			promptExecutor.shutdown();
+			promptExecutor = null;
+		}
+	}
+
+	/**
+	 * The thread that must never wait for room or run operations, the UI thread.
+	 */
+	public static void setUiThread(Thread thread)
+	{
+		uiThread = thread;
+	}
+
+	public static int getBackpressure()
+	{
+		return backpressure;
+	}
+
+	public static boolean isValidBackpressure(int mode)
+	{
+		return mode >= BACKPRESSURE_BLOCK && mode <= BACKPRESSURE_CALLER_RUNS;
+	}
+
+	/**
+	 * Set how operations submitted to a full queue are handled, see BACKPRESSURE_*.
+	 */
+	public static void setBackpressure(int mode)
+	{
+		if (isValidBackpressure(mode)) {
+			backpressure = mode;
+		}
+	}
+
+	public static synchronized Map<String, Object> getStatistics()
+	{
+		Map<String, Object> statistics = new HashMap<String, Object>();
+		statistics.put("maximumThreads", MAX_THREADS);
+		statistics.put("maximumQueueDepth", MAX_QUEUE_DEPTH);
+		statistics.put("backpressure", NAMES[backpressure]);
+		statistics.put("blocked", blocked.get());
+		statistics.put("rejected", rejected.get());
+		statistics.put("dropped", dropped.get());
+		statistics.put("callerRuns", callerRuns.get());
+		if (executor != null) {
+			statistics.put("threads", executor.getPoolSize());
+			statistics.put("activeThreads", executor.getActiveCount());
+			statistics.put("largestThreads", executor.getLargestPoolSize());
+			statistics.put("queueDepth", executor.getQueue().size());
+			statistics.put("queuedOperations", executor.getQueuedTasks());
+			statistics.put("completedTasks", executor.getCompletedTaskCount());
+			statistics.put("utilization", executor.getUtilization());
+		} else {
+			statistics.put("threads", 0);
+			statistics.put("activeThreads", 0);
+			statistics.put("largestThreads", 0);
+			statistics.put("queueDepth", 0);
+			statistics.put("queuedOperations", 0);
+			statistics.put("completedTasks", 0);
+			statistics.put("utilization", 0.0);
+		}
+		statistics.put("promptThreads", promptExecutor != null ? promptExecutor.getPoolSize() : 0);
+		statistics.put("promptQueueDepth", promptExecutor != null ? promptExecutor.getQueue().size() : 0);
+		return statistics;
+	}
+}
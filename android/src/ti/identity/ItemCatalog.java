@@ -0,0 +1,355 @@
+/**
+ * Axway Appcelerator Titanium - ti.identity
+ * Copyright (c) 2017 by Axway. All Rights Reserved.
+ * Licensed under the terms of the Apache Public License
+ * Please see the LICENSE included with this distribution for details.
+ */
+package ti.identity;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Catalog of the stored keychain items and their metadata, held in memory and persisted to
+ * "ti.identity.catalog" in the background.
+ *
+ * Writes and resets of items keep it up to date, so listing and inspecting items never scans
+ * the storage. The catalog file is deleted as soon as the catalog changes and written again
+ * once the change was flushed, so a catalog missing a change is missing itself after a crash.
+ * A missing or unreadable catalog is rebuilt from the items found in storage.
+ */
+public class ItemCatalog
+{
+	public static final int STORAGE_FILE = 0;
+	public static final int STORAGE_VAULT = 1;
+
+	private static final String FILE_NAME = "ti.identity.catalog";
+	private static final String TEMP_SUFFIX = ".tmp";
+	private static final int MAGIC = 0x54694361;
+	private static final int VERSION = 1;
+
+	// wrapped keys of namespaces share the storage of the items
+	private static final String RESERVED_PREFIX = "ti.identity.";
+
+	private static ItemCatalog instance;
+
+	/**
+	 * Metadata of a stored item. Items found while rebuilding the catalog have an unknown
+	 * access control mode (-1) and namespace until they are written again.
+	 */
+	public static class Entry
+	{
+		public final String identifier;
+		public final int storage;
+		public final long size;
+		public final long created;
+		public final long lastWritten;
+		public final String cipher;
+		public final int accessControlMode;
+		public final String namespace;
+
+		Entry(String identifier, int storage, long size, long created, long lastWritten, String cipher,
+			  int accessControlMode, String namespace)
+		{
+			this.identifier = identifier;
+			this.storage = storage;
+			this.size = size;
+			this.created = created;
+			this.lastWritten = lastWritten;
+			this.cipher = cipher;
+			this.accessControlMode = accessControlMode;
+			this.namespace = namespace;
+		}
+
+		public Map<String, Object> toMap()
+		{
+			final Map<String, Object> map = new HashMap<String, Object>();
+			map.put("identifier", identifier);
+			map.put("storage", storage);
+			map.put("size", size);
+			map.put("created", created);
+			map.put("lastWritten", lastWritten);
+			if (cipher != null) {
+				map.put("cipher", cipher);
+			}
+			if (accessControlMode >= 0) {
+				map.put("accessControlMode", accessControlMode);
+			}
+			if (namespace != null) {
+				map.put("namespace", namespace);
+			}
+			return map;
+		}
+	}
+
+	private final File directory;
+	private final File file;
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private final AtomicBoolean flushScheduled = new AtomicBoolean();
+	private volatile boolean loaded;
+	private boolean dirty;
+
+	private final Runnable flushTask = new Runnable() {
+		@Override
+		public void run()
+		{
+			flush();
+		}
+	};
+
+	public ItemCatalog(File directory)
+	{
+		this.directory = directory;
+		this.file = new File(directory, FILE_NAME);
+	}
+
+	/**
+	 * Obtain the shared catalog of a directory, it is loaded on first use.
+	 */
+	public static synchronized ItemCatalog getInstance(File directory)
+	{
+		if (instance == null) {
+			instance = new ItemCatalog(directory);
+		}
+		return instance;
+	}
+
+	/**
+	 * Flush pending changes of the shared catalog, e.g. before the executor is shut down.
+	 */
+	public static void flushInstance()
+	{
+		final ItemCatalog catalog;
+		synchronized (ItemCatalog.class)
+		{
+			catalog = instance;
+		}
+		if (catalog != null) {
+			catalog.flush();
+		}
+	}
+
+	/**
+	 * Record a write of an item, keeping the creation time of an existing entry.
+	 */
+	public void put(String identifier, KeychainStorage storage, long size, String cipher, int accessControlMode,
+					String namespace)
+	{
+		load();
+		final long now = System.currentTimeMillis();
+		final Entry previous = entries.get(identifier);
+		entries.put(identifier, new Entry(identifier,
+										  storage instanceof VaultKeychainStorage ? STORAGE_VAULT : STORAGE_FILE, size,
+										  previous != null ? previous.created : now, now, cipher, accessControlMode,
+										  namespace));
+		changed();
+	}
+
+	public void remove(String identifier)
+	{
+		load();
+		if (entries.remove(identifier) != null) {
+			changed();
+		}
+	}
+
+	public Entry get(String identifier)
+	{
+		load();
+		return entries.get(identifier);
+	}
+
+	public boolean contains(String identifier)
+	{
+		load();
+		return entries.containsKey(identifier);
+	}
+
+	public int count()
+	{
+		load();
+		return entries.size();
+	}
+
+	public List<String> list()
+	{
+		load();
+		return new ArrayList<String>(entries.keySet());
+	}
+
+	/**
+	 * Load the catalog file on first use, or rebuild the catalog if it is missing or corrupt.
+	 */
+	private void load()
+	{
+		if (loaded) {
+			return;
+		}
+		synchronized (this)
+		{
+			if (!loaded) {
+				if (!read()) {
+					rebuild();
+					changed();
+				}
+				loaded = true;
+			}
+		}
+	}
+
+	private boolean read()
+	{
+		if (!file.exists()) {
+			return false;
+		}
+		try {
+			final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+					return false;
+				}
+				final int count = in.readInt();
+				for (int i = 0; i < count; i++) {
+					final String identifier = in.readUTF();
+					final int storage = in.readByte();
+					final long size = in.readLong();
+					final long created = in.readLong();
+					final long lastWritten = in.readLong();
+					final String cipher = in.readBoolean() ? in.readUTF() : null;
+					final int accessControlMode = in.readInt();
+					final String namespace = in.readBoolean() ? in.readUTF() : null;
+					entries.put(identifier, new Entry(identifier, storage, size, created, lastWritten, cipher,
+													  accessControlMode, namespace));
+				}
+			} finally {
+				in.close();
+			}
+			return true;
+		} catch (IOException e) {
+			entries.clear();
+			return false;
+		}
+	}
+
+	/**
+	 * Recreate the entries from the items found in storage, their cipher is taken from the
+	 * header of their data and their creation time from the last write.
+	 */
+	private void rebuild()
+	{
+		entries.clear();
+		scan(new FileKeychainStorage(directory), STORAGE_FILE);
+		if (VaultKeychainStorage.exists(directory)) {
+			final Executor compactor = new Executor() {
+				@Override
+				public void execute(Runnable runnable)
+				{
+					IdentityExecutor.get().execute(runnable);
+				}
+			};
+			try {
+				scan(VaultKeychainStorage.getInstance(directory, compactor), STORAGE_VAULT);
+			} catch (IOException e) {
+				// vault items are added again when they are written
+			}
+		}
+	}
+
+	private void scan(KeychainStorage storage, int type)
+	{
+		for (String identifier : storage.list()) {
+			if (identifier.startsWith(RESERVED_PREFIX)) {
+				continue;
+			}
+			try {
+				final ByteBuffer data = storage.read(identifier);
+				final long size = data.remaining();
+				final ItemHeader header = ItemHeader.read(data);
+				final long modified = storage instanceof FileKeychainStorage
+										  ? ((FileKeychainStorage) storage).getLastModified(identifier)
+										  : 0;
+				entries.put(identifier, new Entry(identifier, type, size, modified, modified,
+												  header != null ? header.getTransformation() : null, -1, null));
+			} catch (IOException e) {
+				// deleted meanwhile
+			}
+		}
+	}
+
+	/**
+	 * Invalidate the catalog file and schedule a flush, changes made meanwhile share it.
+	 */
+	private synchronized void changed()
+	{
+		if (!dirty) {
+			dirty = true;
+			file.delete();
+		}
+		if (flushScheduled.compareAndSet(false, true)) {
+			IdentityExecutor.get().execute(flushTask);
+		}
+	}
+
+	/**
+	 * Write the catalog to a temporary file which replaces the catalog file.
+	 */
+	private synchronized void flush()
+	{
+		flushScheduled.set(false);
+		if (!dirty) {
+			return;
+		}
+		final File temp = new File(directory, FILE_NAME + TEMP_SUFFIX);
+		try {
+			final List<Entry> snapshot = new ArrayList<Entry>(entries.values());
+			final FileOutputStream stream = new FileOutputStream(temp);
+			final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(snapshot.size());
+				for (Entry entry : snapshot) {
+					out.writeUTF(entry.identifier);
+					out.writeByte(entry.storage);
+					out.writeLong(entry.size);
+					out.writeLong(entry.created);
+					out.writeLong(entry.lastWritten);
+					out.writeBoolean(entry.cipher != null);
+					if (entry.cipher != null) {
+						out.writeUTF(entry.cipher);
+					}
+					out.writeInt(entry.accessControlMode);
+					out.writeBoolean(entry.namespace != null);
+					if (entry.namespace != null) {
+						out.writeUTF(entry.namespace);
+					}
+				}
+				out.flush();
+				stream.getFD().sync();
+			} finally {
+				out.close();
+			}
+			if (!temp.renameTo(file)) {
+				throw new IOException("could not replace catalog");
+			}
+			dirty = false;
+		} catch (IOException e) {
+			// the catalog file stays missing and is rebuilt by the next process
+			temp.delete();
+		}
+	}
+}
@@ -0,0 +1,123 @@
+/**
+ * Axway Appcelerator Titanium - ti.identity
+ * Copyright (c) 2017 by Axway. All Rights Reserved.
+ * Licensed under the terms of the Apache Public License
+ * Please see the LICENSE included with this distribution for details.
+ */
+package ti.identity;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Header in front of the stored data of a keychain item, describing how it was encrypted.
+ *
+ * Layout: magic (4), format version (1), cipher (1), IV length (1), tag length (1), flags (1),
+ * length of the payload following the header (8). Data written before the header existed starts
+ * with the IV right away, so a header is only recognized when all of its fields are valid and
+ * the payload length matches the data exactly. Transformations without a cipher id are stored
+ * without a header.
+ */
+public class ItemHeader
+{
+	public static final int SIZE = 17;
+	public static final int VERSION = 1;
+
+	public static final int CIPHER_AES_CBC_PKCS7 = 1;
+	public static final int CIPHER_AES_GCM = 2;
+
+	// the payload is a wrapped key followed by segments, see SegmentedCipher
+	public static final int FLAG_SEGMENTED = 1;
+
+	// the payload is encrypted by the data key of a namespace
+	public static final int FLAG_ENVELOPE = 2;
+
+	private static final int MAGIC = 0x54694b43; // "TiKC"
+	private static final String[] TRANSFORMATIONS = { null, "AES/CBC/PKCS7Padding", "AES/GCM/NoPadding" };
+	private static final int[] IV_LENGTHS = { 0, 16, 12 };
+	private static final int[] TAG_LENGTHS = { 0, 0, 16 };
+
+	public final int version;
+	public final int cipher;
+	public final int ivLength;
+	public final int tagLength;
+	public final int flags;
+	public final long payloadLength;
+
+	private ItemHeader(int version, int cipher, int ivLength, int tagLength, int flags, long payloadLength)
+	{
+		this.version = version;
+		this.cipher = cipher;
+		this.ivLength = ivLength;
+		this.tagLength = tagLength;
+		this.flags = flags;
+		this.payloadLength = payloadLength;
+	}
+
+	/**
+	 * Cipher id of a transformation, 0 if it can not be described by a header.
+	 */
+	public static int getCipherId(String transformation)
+	{
+		for (int i = 1; i < TRANSFORMATIONS.length; i++) {
+			if (TRANSFORMATIONS[i].equals(transformation)) {
+				return i;
+			}
+		}
+		return 0;
+	}
+
+	public String getTransformation()
+	{
+		return TRANSFORMATIONS[cipher];
+	}
+
+	public boolean isSegmented()
+	{
+		return (flags & FLAG_SEGMENTED) != 0;
+	}
+
+	/**
+	 * Parse the header at the position of the data, leaving it positioned at the payload.
+	 * Returns null and leaves the data untouched if it has no valid header.
+	 */
+	public static ItemHeader read(ByteBuffer data)
+	{
+		if (data.remaining() < SIZE) {
+			return null;
+		}
+		final int position = data.position();
+		if (data.getInt(position) != MAGIC) {
+			return null;
+		}
+		final int version = data.get(position + 4) & 0xff;
+		final int cipher = data.get(position + 5) & 0xff;
+		final int ivLength = data.get(position + 6) & 0xff;
+		final int tagLength = data.get(position + 7) & 0xff;
+		final int flags = data.get(position + 8) & 0xff;
+		final long payloadLength = data.getLong(position + 9);
+		if (version != VERSION || cipher <= 0 || cipher >= TRANSFORMATIONS.length || ivLength != IV_LENGTHS[cipher]
+			|| tagLength != TAG_LENGTHS[cipher] || payloadLength != data.remaining() - SIZE) {
+			return null;
+		}
+		data.position(position + SIZE);
+		return new ItemHeader(version, cipher, ivLength, tagLength, flags, payloadLength);
+	}
+
+	/**
+	 * Put the header of a payload encrypted with the given transformation, which must have a cipher id.
+	 */
+	public static void write(ByteBuffer data, String transformation, int flags, long payloadLength)
+	{
+		final int cipher = getCipherId(transformation);
+		if (cipher == 0) {
+			throw new IllegalArgumentException("no cipher id for " + transformation);
+		}
+		data.putInt(MAGIC);
+		data.put((byte) VERSION);
+		data.put((byte) cipher);
+		data.put((byte) IV_LENGTHS[cipher]);
+		data.put((byte) TAG_LENGTHS[cipher]);
+		data.put((byte) flags);
+		data.putLong(payloadLength);
+	}
+}
@@ -0,0 +1,129 @@
+/**
+ * Axway Appcelerator Titanium - ti.identity
+ * Copyright (c) 2017 by Axway. All Rights Reserved.
+ * Licensed under the terms of the Apache Public License
+ * Please see the LICENSE included with this distribution for details.
+ */
+package ti.identity;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.SecretKey;
+import org.appcelerator.kroll.KrollDict;
+
+/**
+ * Process wide cache of the loaded Android key store and the key handles obtained from it.
+ *
+ * Loading the key store and looking up an alias are both calls into the key store daemon,
+ * so the loaded key store is kept for the lifetime of the process and key handles are kept
+ * in a small LRU cache keyed by identifier. Handles are evicted when their key has been
+ * permanently invalidated or the item has been reset.
+ */
+public class KeyCache
+{
+	private static final int MAX_KEYS = 32;
+
+	private static KeyStore keyStore;
+	private static final Map<String, SecretKey> keys = new LinkedHashMap<String, SecretKey>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, SecretKey> eldest)
+		{
+			if (size() > MAX_KEYS) {
+				evictions.incrementAndGet();
+				return true;
+			}
+			return false;
+		}
+	};
+
+	private static final AtomicLong hits = new AtomicLong();
+	private static final AtomicLong misses = new AtomicLong();
+	private static final AtomicLong evictions = new AtomicLong();
+	private static final AtomicLong keyStoreLoads = new AtomicLong();
+
+	public static synchronized KeyStore getKeyStore() throws GeneralSecurityException, IOException
+	{
+		if (keyStore == null) {
+			final long start = System.nanoTime();
+			KeyStore store = KeyStore.getInstance("AndroidKeyStore");
+			store.load(null);
+			LatencyMetrics.recordTotal(LatencyMetrics.STAGE_KEY_STORE, System.nanoTime() - start);
+			keyStoreLoads.incrementAndGet();
+			keyStore = store;
+		}
+		return keyStore;
+	}
+
+	/**
+	 * Obtain the key of an identifier, or null if the key store does not contain one.
+	 */
+	public static SecretKey getKey(String identifier) throws GeneralSecurityException, IOException
+	{
+		synchronized (keys)
+		{
+			SecretKey key = keys.get(identifier);
+			if (key != null) {
+				hits.incrementAndGet();
+				return key;
+			}
+		}
+		misses.incrementAndGet();
+
+		final KeyStore store = getKeyStore();
+		if (!store.containsAlias(identifier)) {
+			return null;
+		}
+		final SecretKey key = (SecretKey) store.getKey(identifier, null);
+		putKey(identifier, key);
+		return key;
+	}
+
+	public static void putKey(String identifier, SecretKey key)
+	{
+		if (key == null) {
+			return;
+		}
+		synchronized (keys)
+		{
+			keys.put(identifier, key);
+		}
+	}
+
+	public static void evict(String identifier)
+	{
+		synchronized (keys)
+		{
+			if (keys.remove(identifier) != null) {
+				evictions.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Evict the key of an identifier and remove it from the key store.
+	 */
+	public static void deleteKey(String identifier) throws GeneralSecurityException, IOException
+	{
+		evict(identifier);
+		getKeyStore().deleteEntry(identifier);
+	}
+
+	public static KrollDict getStatistics()
+	{
+		KrollDict statistics = new KrollDict();
+		synchronized (keys)
+		{
+			statistics.put("size", keys.size());
+		}
+		statistics.put("maximumSize", MAX_KEYS);
+		statistics.put("hits", hits.get());
+		statistics.put("misses", misses.get());
+		statistics.put("evictions", evictions.get());
+		statistics.put("keyStoreLoads", keyStoreLoads.get());
+		return statistics;
+	}
+}
@@ -0,0 +1,80 @@
+/**
+ * Axway Appcelerator Titanium - ti.identity
+ * Copyright (c) 2017 by Axway. All Rights Reserved.
+ * Licensed under the terms of the Apache Public License
+ * Please see the LICENSE included with this distribution for details.
+ */
+package ti.identity;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.spec.AlgorithmParameterSpec;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+/**
+ * Source of the keys and ciphers of keychain items, the Android key store on a device.
+ */
+public interface KeyProvider
+{
+	/**
+	 * Description of the key of a keychain item.
+	 */
+	class Spec
+	{
+		public final String identifier;
+		public final String algorithm;
+		public final String blockMode;
+		public final String padding;
+		public final int accessControlMode;
+		public final int authenticationValidity;
+
+		public Spec(String identifier, String algorithm, String blockMode, String padding, int accessControlMode,
+					int authenticationValidity)
+		{
+			this.identifier = identifier;
+			this.algorithm = algorithm;
+			this.blockMode = blockMode;
+			this.padding = padding;
+			this.accessControlMode = accessControlMode;
+			this.authenticationValidity = authenticationValidity;
+		}
+	}
+
+	/**
+	 * Obtain the key of a spec's identifier, generating it if it does not exist yet.
+	 */
+	SecretKey getOrCreateKey(Spec spec) throws GeneralSecurityException, IOException;
+
+	/**
+	 * Remove a key, so the next getOrCreateKey generates a new one.
+	 */
+	void deleteKey(String identifier) throws GeneralSecurityException, IOException;
+
+	/**
+	 * Drop any cached handle of a key, the key itself is kept.
+	 */
+	void evictKey(String identifier);
+
+	Cipher getCipher(String transformation) throws GeneralSecurityException;
+
+	/**
+	 * Parameters to initialize a cipher of the given block mode with an IV.
+	 */
+	AlgorithmParameterSpec getParameters(String blockMode, byte[] iv);
+
+	/**
+	 * Whether the device is protected by a passcode, which keys requiring user presence need.
+	 */
+	boolean isDeviceSecure();
+
+	/**
+	 * Whether initializing a cipher failed because the authentication window of its key expired.
+	 */
+	boolean isUserNotAuthenticated(Exception e);
+
+	/**
+	 * Whether a key can never be used again, for example after new biometrics were enrolled.
+	 */
+	boolean isPermanentlyInvalidated(Exception e);
+}
@@ -0,0 +1,182 @@
+/**
+ * Axway Appcelerator Titanium - ti.identity
+ * Copyright (c) 2017 by Axway. All Rights Reserved.
+ * Licensed under the terms of the Apache Public License
+ * Please see the LICENSE included with this distribution for details.
+ */
+package ti.identity;
+
+import android.os.Build;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyInfo;
+import android.security.keystore.KeyProperties;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import org.appcelerator.kroll.KrollDict;
+import org.appcelerator.kroll.KrollFunction;
+import org.appcelerator.kroll.KrollObject;
+
+/**
+ * Obtains or generates the key store keys of keychain items.
+ *
+ * Key generation is slow for hardware backed keys, so it is performed off the JS thread.
+ * Generation is serialized per identifier, keys of different identifiers are generated
+ * in parallel.
+ *
+ * The authentication validity is fixed when a key is generated. An existing key of a biometric
+ * item whose validity does not match the item's anymore is replaced, values encrypted with the
+ * former key can not be decrypted afterwards and have to be saved again.
+ */
+public class KeyProvisioner
+{
+	private static final ConcurrentHashMap<String, Object> locks = new ConcurrentHashMap<String, Object>();
+
+	// authentication validity each key was checked against, so cached keys are not inspected again
+	private static final ConcurrentHashMap<String, Integer> validities = new ConcurrentHashMap<String, Integer>();
+
+	private static Object getLock(String identifier)
+	{
+		final Object lock = new Object();
+		final Object existing = locks.putIfAbsent(identifier, lock);
+		return existing != null ? existing : lock;
+	}
+
+	private static boolean requiresAuthentication(KeyProvider.Spec spec)
+	{
+		return (spec.accessControlMode
+				& (KeychainEngine.ACCESS_CONTROL_TOUCH_ID_ANY | KeychainEngine.ACCESS_CONTROL_TOUCH_ID_CURRENT_SET))
+			!= 0;
+	}
+
+	/**
+	 * Whether a key requiring authentication was generated with the validity of the spec.
+	 * Keys without a validity report -1, or 0 when generated with authentication parameters.
+	 */
+	private static boolean hasValidity(SecretKey key, KeyProvider.Spec spec) throws GeneralSecurityException
+	{
+		final KeyInfo info = (KeyInfo) SecretKeyFactory.getInstance(key.getAlgorithm(), "AndroidKeyStore")
+								 .getKeySpec(key, KeyInfo.class);
+		if (!info.isUserAuthenticationRequired()) {
+			return true;
+		}
+		final int validity = info.getUserAuthenticationValidityDurationSeconds();
+		return spec.authenticationValidity > 0 ? validity == spec.authenticationValidity : validity <= 0;
+	}
+
+	@SuppressWarnings("NewApi")
+	public static SecretKey getOrCreateKey(KeyProvider.Spec spec) throws GeneralSecurityException, IOException
+	{
+		synchronized (getLock(spec.identifier))
+		{
+			SecretKey key = KeyCache.getKey(spec.identifier);
+			if (key != null) {
+				if (!requiresAuthentication(spec)
+					|| Integer.valueOf(spec.authenticationValidity).equals(validities.get(spec.identifier))) {
+					return key;
+				}
+				if (hasValidity(key, spec)) {
+					validities.put(spec.identifier, spec.authenticationValidity);
+					return key;
+				}
+
+				// a per use key would never be unlocked by the window and vice versa
+				KeyCache.deleteKey(spec.identifier);
+			}
+
+			KeyGenerator generator = KeyGenerator.getInstance(spec.algorithm, "AndroidKeyStore");
+			KeyGenParameterSpec.Builder builder =
+				new KeyGenParameterSpec
+					.Builder(spec.identifier, KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+					.setBlockModes(spec.blockMode)
+					.setEncryptionPaddings(spec.padding);
+
+			if (requiresAuthentication(spec)) {
+				builder.setUserAuthenticationRequired(true);
+
+				// keys bound to a time window stay unlocked after an authentication
+				if (spec.authenticationValidity > 0) {
+					if (Build.VERSION.SDK_INT >= 30) {
+						builder.setUserAuthenticationParameters(spec.authenticationValidity,
+																KeyProperties.AUTH_BIOMETRIC_STRONG);
+					} else {
+						builder.setUserAuthenticationValidityDurationSeconds(spec.authenticationValidity);
+					}
+				}
+			}
+			if ((spec.accessControlMode & KeychainEngine.ACCESS_CONTROL_TOUCH_ID_CURRENT_SET) != 0
+				&& Build.VERSION.SDK_INT >= 24) {
+				builder.setInvalidatedByBiometricEnrollment(true);
+			}
+
+			generator.init(builder.build());
+			key = generator.generateKey();
+			KeyCache.putKey(spec.identifier, key);
+			validities.put(spec.identifier, spec.authenticationValidity);
+			return key;
+		}
+	}
+
+	/**
+	 * Provision the keys of several identifiers in parallel and report one combined result.
+	 */
+	public static void provision(final List<KeyProvider.Spec> specs, final KrollFunction callback,
+								 final KrollObject krollObject)
+	{
+		final KrollDict[] results = new KrollDict[specs.size()];
+		final AtomicInteger remaining = new AtomicInteger(specs.size());
+
+		final Runnable finish = new Runnable() {
+			@Override
+			public void run()
+			{
+				boolean success = true;
+				for (KrollDict result : results) {
+					success = success && result.getBoolean("success");
+				}
+				KrollDict result = new KrollDict();
+				result.put("success", success);
+				result.put("code", success ? 0 : -1);
+				result.put("results", results);
+				if (callback != null) {
+					callback.callAsync(krollObject, result);
+				}
+			}
+		};
+		if (specs.isEmpty()) {
+			finish.run();
+			return;
+		}
+
+		for (int i = 0; i < specs.size(); i++) {
+			final int index = i;
+			final KeyProvider.Spec spec = specs.get(i);
+			IdentityExecutor.get().execute(new Runnable() {
+				@Override
+				public void run()
+				{
+					KrollDict result = new KrollDict();
+					result.put("identifier", spec.identifier);
+					try {
+						getOrCreateKey(spec);
+						result.put("success", true);
+						result.put("code", 0);
+					} catch (Exception e) {
+						result.put("success", false);
+						result.put("code", -1);
+						result.put("error", e.getMessage());
+					}
+					results[index] = result;
+					if (remaining.decrementAndGet() == 0) {
+						finish.run();
+					}
+				}
+			});
+		}
+	}
+}
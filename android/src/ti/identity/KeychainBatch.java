@@ -0,0 +1,253 @@
+/**
+ * Axway Appcelerator Titanium - ti.identity
+ * Copyright (c) 2017 by Axway. All Rights Reserved.
+ * Licensed under the terms of the Apache Public License
+ * Please see the LICENSE included with this distribution for details.
+ */
+package ti.identity;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.appcelerator.kroll.KrollDict;
+import org.appcelerator.kroll.KrollFunction;
+import org.appcelerator.kroll.KrollObject;
+
+/**
+ * Runs one keychain operation over several items and reports a single combined result.
+ *
+ * Every item receives the operation through its own event queue, so ordering relative to
+ * other operations on the same item is kept. Items that do not require authentication are
+ * processed in parallel as soon as they are ready, items that do are authenticated by the
+ * batch once every item of the batch has been prepared.
+ */
+public class KeychainBatch implements KeychainEngine.Batch
+{
+	private final String event;
+	private final List<KeychainEngine> items;
+	private final KrollDict[] results;
+	private final KrollFunction callback;
+	private final KrollObject krollObject;
+
+	private final List<KeychainEngine> authItems = new ArrayList<KeychainEngine>();
+	private final Set<KeychainEngine> prepared = new HashSet<KeychainEngine>();
+	private int pending;
+	private int remaining;
+
+	public KeychainBatch(String event, List<KeychainEngine> items, KrollFunction callback, KrollObject krollObject)
+	{
+		this.event = event;
+		this.items = items;
+		this.results = new KrollDict[items.size()];
+		this.callback = callback;
+		this.krollObject = krollObject;
+	}
+
+	public void start(List<byte[]> values)
+	{
+		List<Integer> accepted = new ArrayList<Integer>();
+		synchronized (this)
+		{
+			for (int i = 0; i < items.size(); i++) {
+				KeychainEngine item = items.get(i);
+				if (items.indexOf(item) != i) {
+					results[i] = error(item, -1, "item is already part of this batch.");
+					continue;
+				}
+				accepted.add(i);
+			}
+			pending = accepted.size();
+			remaining = accepted.size();
+		}
+		if (accepted.isEmpty()) {
+			finish();
+			return;
+		}
+		for (int i : accepted) {
+			items.get(i).enqueue(event, values != null ? values.get(i) : null, this);
+		}
+	}
+
+	/**
+	 * Called by an item once its cipher has been initialized for this batch.
+	 */
+	@Override
+	public void ready(KeychainEngine item, boolean authenticate)
+	{
+		boolean authenticateNow = false;
+		synchronized (this)
+		{
+			if (authenticate) {
+				authItems.add(item);
+			} else {
+				run(item);
+			}
+			authenticateNow = prepare(item);
+		}
+		if (authenticateNow) {
+			authenticateNext();
+		}
+	}
+
+	/**
+	 * Mark an item as prepared, returns true once the last item has been prepared
+	 * and there are items waiting for authentication.
+	 */
+	private boolean prepare(KeychainEngine item)
+	{
+		if (!prepared.add(item)) {
+			return false;
+		}
+		return --pending == 0 && !authItems.isEmpty();
+	}
+
+	/**
+	 * Called by an item once its part of the batch completed, successful or not.
+	 */
+	@Override
+	public void complete(KeychainEngine item, Map<String, Object> values)
+	{
+		KrollDict result = new KrollDict(values);
+		boolean done = false;
+		boolean authenticateNow = false;
+		synchronized (this)
+		{
+			result.put("identifier", item.getIdentifier());
+			results[items.indexOf(item)] = result;
+			done = --remaining == 0;
+
+			// items that failed before being prepared must not hold back authentication
+			authenticateNow = prepare(item);
+		}
+		if (authenticateNow) {
+			authenticateNext();
+		}
+		if (done) {
+			finish();
+		}
+	}
+
+	private void run(final KeychainEngine item)
+	{
+		IdentityExecutor.get().execute(new Runnable() {
+			@Override
+			public void run()
+			{
+				item.doEvents(0, null);
+			}
+		});
+	}
+
+	/**
+	 * Authenticate the items waiting for authentication. All items with keys bound to a time
+	 * window are unlocked by one shared prompt. A key that requires authentication for every
+	 * use can only be unlocked through its own CryptoObject, so each of those items is bound
+	 * to the prompt individually. A cancelled prompt or a rejected attempt fails all remaining
+	 * items, like a rejected attempt fails the operation of a single item.
+	 */
+	private void authenticateNext()
+	{
+		final List<KeychainEngine> unlocked = new ArrayList<KeychainEngine>();
+		synchronized (this)
+		{
+			for (KeychainEngine authItem : authItems) {
+				if (authItem.getAuthenticationCipher() == null) {
+					unlocked.add(authItem);
+				}
+			}
+			if (unlocked.isEmpty() && !authItems.isEmpty()) {
+				unlocked.add(authItems.get(0));
+			}
+			authItems.removeAll(unlocked);
+		}
+		if (unlocked.isEmpty()) {
+			return;
+		}
+		final KeychainEngine item = unlocked.get(0);
+		final long start = System.nanoTime();
+
+		item.getAuthenticator().authenticate(
+			item.getAuthenticationCipher(), new Authenticator.Callback() {
+				// the prompt may still succeed after the items failed
+				private final AtomicBoolean ended = new AtomicBoolean();
+
+				@Override
+				public void onError(int errorCode, String message)
+				{
+					if (!ended.compareAndSet(false, true)) {
+						return;
+					}
+					recordAuthentication(item, start);
+					List<KeychainEngine> failed = new ArrayList<KeychainEngine>();
+					synchronized (KeychainBatch.this)
+					{
+						failed.addAll(unlocked);
+						failed.addAll(authItems);
+						authItems.clear();
+					}
+					for (KeychainEngine failedItem : failed) {
+						failedItem.doEvents(errorCode, message);
+					}
+				}
+
+				@Override
+				public void onAuthenticated()
+				{
+					if (!ended.compareAndSet(false, true)) {
+						return;
+					}
+					recordAuthentication(item, start);
+					for (KeychainEngine unlockedItem : unlocked) {
+						run(unlockedItem);
+					}
+					authenticateNext();
+				}
+
+				@Override
+				public void onAttemptFailed()
+				{
+					onError(KeychainEngine.ERROR_AUTHENTICATION_FAILED, "failed to authenticate fingerprint!");
+				}
+			});
+	}
+
+	private static void recordAuthentication(KeychainEngine item, long start)
+	{
+		final long nanos = System.nanoTime() - start;
+		item.getMetrics().record(LatencyMetrics.STAGE_AUTHENTICATION, nanos);
+		OperationTracer.span(OperationTracer.STAGE_AUTHENTICATION, item.getIdentifier(), null, nanos);
+	}
+
+	private void finish()
+	{
+		boolean success = true;
+		Object[] list = new Object[results.length];
+		for (int i = 0; i < results.length; i++) {
+			list[i] = results[i];
+			if (results[i] == null || !Boolean.TRUE.equals(results[i].get("success"))) {
+				success = false;
+			}
+		}
+
+		KrollDict result = new KrollDict();
+		result.put("success", success);
+		result.put("code", success ? 0 : -1);
+		result.put("results", list);
+		if (callback != null) {
+			callback.callAsync(krollObject, result);
+		}
+	}
+
+	private static KrollDict error(KeychainEngine item, int code, String message)
+	{
+		KrollDict result = new KrollDict();
+		result.put("identifier", item.getIdentifier());
+		result.put("success", false);
+		result.put("code", code);
+		result.put("error", message);
+		return result;
+	}
+}
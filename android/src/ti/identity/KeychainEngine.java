@@ -0,0 +1,1620 @@
+/**
+ * Axway Appcelerator Titanium - ti.identity
+ * Copyright (c) 2017 by Axway. All Rights Reserved.
+ * Licensed under the terms of the Apache Public License
+ * Please see the LICENSE included with this distribution for details.
+ */
+package ti.identity;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Platform independent core of a keychain item: the operation queue, the cipher pipeline
+ * and the layout of the stored data.
+ *
+ * Keys, authentication and storage are provided through KeyProvider, Authenticator and
+ * KeychainStorage, results are reported to a Listener. KeychainItemProxy adapts it to
+ * Titanium and the Android key store, on a JVM it runs with software keys.
+ */
+public class KeychainEngine
+{
+	public static final String EVENT_SAVE = "save";
+	public static final String EVENT_READ = "read";
+	public static final String EVENT_UPDATE = "update";
+	public static final String EVENT_RESET = "reset";
+	public static final String EVENT_CHUNK = "chunk";
+	public static final String EVENT_PREPARE = "prepare";
+
+	public static final int ACCESS_CONTROL_USER_PRESENCE = 1;
+	public static final int ACCESS_CONTROL_DEVICE_PASSCODE = 2;
+	public static final int ACCESS_CONTROL_TOUCH_ID_ANY = 4;
+	public static final int ACCESS_CONTROL_TOUCH_ID_CURRENT_SET = 8;
+
+	public static final int ERROR_AUTHENTICATION_FAILED = -1;
+	public static final int ERROR_PASSCODE_NOT_SET = -4;
+	public static final int ERROR_KEY_PERMANENTLY_INVALIDATED = -5;
+
+	public static final int OUTPUT_STRING = 0;
+	public static final int OUTPUT_BLOB = 1;
+	public static final int OUTPUT_CHUNKS = 2;
+
+	public static final String ALGORITHM_AES = "AES";
+	public static final String BLOCK_MODE_CBC = "CBC";
+	public static final String BLOCK_MODE_GCM = "GCM";
+	public static final String ENCRYPTION_PADDING_PKCS7 = "PKCS7Padding";
+
+	private static final String NAMESPACE_ALIAS = "ti.identity.envelope.";
+	private static final String CIPHER_ALIAS = "ti.identity.cipher";
+	private static final String ENVELOPE_TRANSFORMATION = "AES/GCM/NoPadding";
+	private static final int ENVELOPE_IV_SIZE = 12;
+	private static final int ENVELOPE_TAG_SIZE = 16;
+	private static final SecureRandom random = new SecureRandom();
+
+	// prepared reads of a former generation have expired
+	private static final AtomicInteger preparedGeneration = new AtomicInteger();
+
+	/**
+	 * Receives the results of operations. Values of binary reads and chunks are byte arrays.
+	 */
+	public interface Listener
+	{
+		void onResult(String event, Map<String, Object> result);
+
+		/**
+		 * Deliver a chunk of a chunked read. The next segment is only decrypted once this returns,
+		 * so blocking until the chunk was consumed bounds the plaintext held to a single chunk.
+		 */
+		void onChunk(Map<String, Object> chunk);
+	}
+
+	/**
+	 * Receives the result of a single operation instead of the listener.
+	 */
+	public interface Completion
+	{
+		void onComplete(Map<String, Object> result);
+	}
+
+	/**
+	 * A value that is streamed into storage instead of being held in memory.
+	 */
+	public interface Source
+	{
+		long getLength();
+
+		InputStream open() throws IOException;
+	}
+
+	/**
+	 * Processes one operation over several engines, see KeychainBatch.
+	 */
+	public interface Batch
+	{
+		/**
+		 * The cipher of the engine's operation has been initialized.
+		 */
+		void ready(KeychainEngine engine, boolean authenticate);
+
+		void complete(KeychainEngine engine, Map<String, Object> result);
+	}
+
+	private final KeyProvider keyProvider;
+	private final Authenticator authenticator;
+	private final Listener listener;
+
+	private SecretKey key;
+	private Cipher cipher;
+	private Cipher dataCipher;
+	private Cipher envelopeCipher;
+	private int envelopeGeneration;
+	private int ivSize = 16;
+	private String migrationCipher;
+	private String migrationBlockMode;
+	private SecretKey targetKey;
+	private Cipher targetCipher;
+	private boolean useTarget = false;
+	private boolean segmentedData = false;
+	private byte[] migrationValue;
+
+	private String algorithm = ALGORITHM_AES;
+	private String blockMode = BLOCK_MODE_CBC;
+	private String padding = ENCRYPTION_PADDING_PKCS7;
+
+	private String identifier = "";
+	private int accessControlMode = 0;
+	private int authenticationValidity = 0;
+	private boolean authenticationPending = false;
+	private KeychainStorage storage;
+	private KeychainStorage keyStorage;
+	private ItemCatalog catalog;
+	private int segmentSize = 0;
+	private int durability = KeychainWriter.DURABILITY_STRICT;
+	private boolean coalesce = false;
+	private int cacheTimeout = 0;
+	private String namespace;
+	private boolean unwrapping = false;
+	private ByteBuffer wrappedDataKey;
+	private ByteBuffer encryptedData;
+	private LatencyMetrics metrics = new LatencyMetrics();
+	private long authenticationStarted;
+	private volatile long authenticatedAt;
+	private volatile boolean authenticated = false;
+	private boolean prepared = false;
+	private int preparedIn;
+
+	private class EVENT
+	{
+		public final String event;
+		public final byte[] value;
+		public final Source source;
+		public final int output;
+		public final Batch batch;
+		public final Completion completion;
+
+		// following events coalesced into this one
+		public List<EVENT> merged = Collections.emptyList();
+
+		// start of the operation's trace span
+		public long traced;
+
+		public EVENT(String event, byte[] value, Source source, int output, Batch batch, Completion completion)
+		{
+			this.event = event;
+			this.value = value;
+			this.source = source;
+			this.output = output;
+			this.batch = batch;
+			this.completion = completion;
+		}
+
+		/**
+		 * The event whose value is written, the last one of coalesced writes.
+		 */
+		public EVENT effective()
+		{
+			return merged.isEmpty() ? this : merged.get(merged.size() - 1);
+		}
+
+		public boolean isWrite()
+		{
+			return event.equals(EVENT_SAVE) || event.equals(EVENT_UPDATE);
+		}
+	}
+	private final OperationQueue<EVENT> eventQueue = new OperationQueue<EVENT>();
+	private volatile boolean keyReady = true;
+
+	/**
+	 * Without an authenticator keys requiring authentication can not be used.
+	 */
+	public KeychainEngine(KeyProvider keyProvider, Authenticator authenticator, KeychainStorage storage,
+						  Listener listener)
+	{
+		this.keyProvider = keyProvider;
+		this.authenticator = authenticator;
+		this.storage = storage;
+		this.keyStorage = storage;
+		this.listener = listener;
+	}
+
+	public String getIdentifier()
+	{
+		return identifier;
+	}
+
+	public void setIdentifier(String identifier)
+	{
+		this.identifier = identifier;
+		metrics = LatencyMetrics.forItem(identifier);
+	}
+
+	/**
+	 * Latencies of the stages of this item's operations.
+	 */
+	public LatencyMetrics getMetrics()
+	{
+		return metrics;
+	}
+
+	public String getCipher()
+	{
+		return algorithm + "/" + blockMode + "/" + padding;
+	}
+
+	/**
+	 * Transformation of the key store key. Namespace data keys are always wrapped with the
+	 * envelope transformation, so items of a namespace share the wrapping key whatever their cipher.
+	 */
+	private String getKeyTransformation()
+	{
+		return namespace != null ? ENVELOPE_TRANSFORMATION : getCipher();
+	}
+
+	private String getKeyBlockMode()
+	{
+		return namespace != null ? BLOCK_MODE_GCM : blockMode;
+	}
+
+	/**
+	 * Set the transformation of the item's key, e.g. AES/CBC/PKCS7Padding.
+	 */
+	public void setCipher(String transformation)
+	{
+		String[] cipher = transformation.split("/");
+		if (cipher.length == 3) {
+			algorithm = cipher[0];
+			blockMode = cipher[1];
+			padding = cipher[2];
+
+			// set IV size
+			ivSize = BLOCK_MODE_GCM.equals(blockMode) ? 12 : 16;
+		}
+	}
+
+	public String getMigrationCipher()
+	{
+		return migrationCipher;
+	}
+
+	/**
+	 * Set the transformation stored data is moved to, e.g. AES/GCM/NoPadding. New data is written
+	 * with it and data of the item's own cipher is re-encrypted once it was read. Only
+	 * transformations ItemHeader can describe are accepted, null disables the migration.
+	 */
+	public void setMigrationCipher(String transformation)
+	{
+		if (transformation == null || ItemHeader.getCipherId(transformation) != 0) {
+			migrationCipher = transformation;
+			migrationBlockMode = transformation != null ? transformation.split("/")[1] : null;
+			targetKey = null;
+			targetCipher = null;
+		}
+	}
+
+	public int getAccessControlMode()
+	{
+		return accessControlMode;
+	}
+
+	public void setAccessControlMode(int accessControlMode)
+	{
+		this.accessControlMode = accessControlMode;
+	}
+
+	public int getAuthenticationValidity()
+	{
+		return authenticationValidity;
+	}
+
+	public void setAuthenticationValidity(int seconds)
+	{
+		authenticationValidity = Math.max(0, seconds);
+	}
+
+	public KeychainStorage getStorage()
+	{
+		return storage;
+	}
+
+	public void setStorage(KeychainStorage storage)
+	{
+		this.storage = storage;
+	}
+
+	/**
+	 * Storage of the wrapped data keys of namespaces, the item's storage by default.
+	 */
+	public void setKeyStorage(KeychainStorage keyStorage)
+	{
+		this.keyStorage = keyStorage;
+	}
+
+	/**
+	 * Catalog recording the item's writes and resets, none by default.
+	 */
+	public void setCatalog(ItemCatalog catalog)
+	{
+		this.catalog = catalog;
+	}
+
+	public int getSegmentSize()
+	{
+		return segmentSize;
+	}
+
+	public void setSegmentSize(int size)
+	{
+		segmentSize = size > 0 ? Math.max(SegmentedCipher.MIN_SEGMENT_SIZE, size) : 0;
+	}
+
+	public int getDurability()
+	{
+		return durability;
+	}
+
+	public void setDurability(int mode)
+	{
+		if (KeychainWriter.isValid(mode)) {
+			durability = mode;
+		}
+	}
+
+	public boolean getCoalesce()
+	{
+		return coalesce;
+	}
+
+	public void setCoalesce(boolean coalesce)
+	{
+		this.coalesce = coalesce;
+	}
+
+	public int getCacheTimeout()
+	{
+		return cacheTimeout;
+	}
+
+	public void setCacheTimeout(int seconds)
+	{
+		cacheTimeout = Math.max(0, seconds);
+
+		// reads no longer refresh or drop a cached value
+		if (cacheTimeout == 0 && identifier != null) {
+			PlaintextCache.invalidate(identifier);
+		}
+	}
+
+	public String getNamespace()
+	{
+		return namespace;
+	}
+
+	public void setNamespace(String namespace)
+	{
+		this.namespace = namespace != null && !namespace.isEmpty() ? namespace : null;
+	}
+
+	public Authenticator getAuthenticator()
+	{
+		return authenticator;
+	}
+
+	/**
+	 * Items of a namespace share the key store key wrapping the namespace's data key, one per
+	 * access control, so the key of every item is created with the access control it asks for.
+	 */
+	private String getKeyAlias()
+	{
+		if (namespace == null) {
+			return identifier;
+		}
+		return NAMESPACE_ALIAS + accessControlMode + "." + authenticationValidity + "." + namespace;
+	}
+
+	/**
+	 * Key of the migration cipher, separate from the item's own key since key store keys are
+	 * bound to their block mode.
+	 */
+	private String getTargetAlias()
+	{
+		return CIPHER_ALIAS + ItemHeader.getCipherId(migrationCipher) + "." + identifier;
+	}
+
+	/**
+	 * Whether data is moved to the migration cipher, envelope items are encrypted by their data key.
+	 */
+	private boolean isMigrating()
+	{
+		return migrationCipher != null && namespace == null && !migrationCipher.equals(getCipher());
+	}
+
+	private void provisionTarget() throws GeneralSecurityException, IOException
+	{
+		if (targetKey != null) {
+			return;
+		}
+		final String[] transformation = migrationCipher.split("/");
+		final long start = System.nanoTime();
+		targetKey = keyProvider.getOrCreateKey(new KeyProvider.Spec(getTargetAlias(), transformation[0], transformation[1],
+																	transformation[2], accessControlMode,
+																	authenticationValidity));
+		metrics.record(LatencyMetrics.STAGE_KEY_GENERATION, System.nanoTime() - start);
+		targetCipher = keyProvider.getCipher(migrationCipher);
+	}
+
+	/**
+	 * Key store cipher of the current operation, the migration cipher's or the item's own.
+	 */
+	private Cipher getActiveCipher()
+	{
+		return useTarget ? targetCipher : cipher;
+	}
+
+	private String getActiveAlias()
+	{
+		return useTarget ? getTargetAlias() : getKeyAlias();
+	}
+
+	private boolean useFingerprintAuthentication()
+	{
+		if ((accessControlMode & (ACCESS_CONTROL_TOUCH_ID_ANY | ACCESS_CONTROL_TOUCH_ID_CURRENT_SET)) != 0) {
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Whether the current operation has to be authenticated before the cipher can be used.
+	 * Keys bound to a time window only need authentication once the window has expired,
+	 * envelope items only while unwrapping their namespace's data key.
+	 */
+	protected boolean requiresAuthentication()
+	{
+		if (authenticator == null || !useFingerprintAuthentication() || (namespace != null && !unwrapping)) {
+			return false;
+		}
+		return authenticationValidity > 0 ? authenticationPending : true;
+	}
+
+	/**
+	 * The cipher to bind to the authentication. Keys bound to a time window are unlocked
+	 * by the authentication itself and can not be bound to it.
+	 */
+	protected Cipher getAuthenticationCipher()
+	{
+		return authenticationValidity > 0 ? null : getActiveCipher();
+	}
+
+	private void recordAuthentication()
+	{
+		final long nanos = System.nanoTime() - authenticationStarted;
+		metrics.record(LatencyMetrics.STAGE_AUTHENTICATION, nanos);
+		OperationTracer.span(OperationTracer.STAGE_AUTHENTICATION, identifier, null, nanos);
+	}
+
+	/**
+	 * Authenticate the current operation. A rejected attempt fails it, like a cancelled prompt,
+	 * and the prompt's later outcome is ignored, it must not complete a following operation.
+	 */
+	private void authenticate()
+	{
+		authenticationStarted = System.nanoTime();
+		authenticator.authenticate(getAuthenticationCipher(), new Authenticator.Callback() {
+			private final AtomicBoolean ended = new AtomicBoolean();
+
+			@Override
+			public void onAuthenticated()
+			{
+				if (ended.compareAndSet(false, true)) {
+					recordAuthentication();
+					authenticatedAt = System.nanoTime();
+					authenticated = true;
+					doEvents(0, null);
+				}
+			}
+
+			@Override
+			public void onError(int code, String message)
+			{
+				if (ended.compareAndSet(false, true)) {
+					recordAuthentication();
+					doEvents(code, message);
+				}
+			}
+
+			@Override
+			public void onAttemptFailed()
+			{
+				if (ended.compareAndSet(false, true)) {
+					doEvents(ERROR_AUTHENTICATION_FAILED, "failed to authenticate fingerprint!");
+				}
+			}
+		});
+	}
+
+	/**
+	 * Obtain the item's key, generating it if needed, and its cipher. Then process the
+	 * operations held back by holdEvents.
+	 */
+	public void provisionKey() throws GeneralSecurityException, IOException
+	{
+		try {
+			final long start = System.nanoTime();
+			final String[] transformation = getKeyTransformation().split("/");
+			key = keyProvider.getOrCreateKey(new KeyProvider.Spec(getKeyAlias(), transformation[0], transformation[1],
+																  transformation[2], accessControlMode,
+																  authenticationValidity));
+			metrics.record(LatencyMetrics.STAGE_KEY_GENERATION, System.nanoTime() - start);
+			cipher = keyProvider.getCipher(getKeyTransformation());
+			if ((accessControlMode & (ACCESS_CONTROL_USER_PRESENCE | ACCESS_CONTROL_DEVICE_PASSCODE)) != 0
+				&& !keyProvider.isDeviceSecure()) {
+				key = null;
+				throw new InvalidKeyException("device is not secure, could not generate key!");
+			}
+		} finally {
+			keyReady = true;
+			processEvents();
+		}
+	}
+
+	/**
+	 * Generating a key can take a while, operations queued meanwhile wait for it.
+	 */
+	public void holdEvents()
+	{
+		keyReady = false;
+	}
+
+	private void initCipher(int mode, byte[] iv) throws GeneralSecurityException
+	{
+		final long start = System.nanoTime();
+		try {
+			final Cipher activeCipher = getActiveCipher();
+			final SecretKey activeKey = useTarget ? targetKey : key;
+			if (iv != null) {
+				activeCipher.init(mode, activeKey,
+								  keyProvider.getParameters(useTarget ? migrationBlockMode : getKeyBlockMode(), iv));
+			} else {
+				activeCipher.init(mode, activeKey);
+			}
+			metrics.record(LatencyMetrics.STAGE_CIPHER_INIT, System.nanoTime() - start);
+			authenticationPending = false;
+		} catch (GeneralSecurityException e) {
+			if (authenticationValidity <= 0 || !keyProvider.isUserNotAuthenticated(e)) {
+				throw e;
+			}
+
+			// authentication window expired, authenticate before initializing again
+			authenticationPending = true;
+		}
+	}
+
+	/**
+	 * Initialize the cipher again once a time bound authentication succeeded.
+	 */
+	private Map<String, Object> resumeCipher(EVENT e)
+	{
+		Map<String, Object> result = e.event.equals(EVENT_READ) ? initDecrypt(false) : initEncrypt(false);
+		if (result == null && authenticationPending) {
+			result = new HashMap<String, Object>();
+			result.put("identifier", identifier);
+			result.put("success", false);
+			result.put("code", ERROR_AUTHENTICATION_FAILED);
+			result.put("error", "user is not authenticated!");
+		}
+		return result;
+	}
+
+	/**
+	 * Start processing queued events on the executor, unless they are processed already.
+	 */
+	private void processEvents()
+	{
+		if (!keyReady) {
+			return;
+		}
+		final EVENT e = eventQueue.acquire();
+		if (e != null) {
+			execute(e);
+		}
+	}
+
+	/**
+	 * Drain the queue from an event on the executor, as a task its backpressure may turn down.
+	 */
+	private void execute(final EVENT e)
+	{
+		IdentityExecutor.get().execute(new IdentityExecutor.Task() {
+				@Override
+				public void run()
+				{
+					drainEvents(e);
+				}
+
+				@Override
+				public boolean isRead()
+				{
+					return e.event.equals(EVENT_READ) || e.event.equals(EVENT_PREPARE);
+				}
+
+				@Override
+				public void reject()
+				{
+					rejectEvents(e);
+				}
+			});
+	}
+
+	/**
+	 * Fail an event whose processing was turned down by the executor's backpressure, then
+	 * submit the following events again.
+	 */
+	private void rejectEvents(EVENT e)
+	{
+		Map<String, Object> result = new HashMap<String, Object>();
+		result.put("identifier", identifier);
+		result.put("success", false);
+		result.put("code", -1);
+		result.put("error", "too many pending operations, try again.");
+		if (completeEvent(e, result)) {
+			final EVENT next = eventQueue.next();
+			if (next != null) {
+				execute(next);
+			}
+		}
+	}
+
+	/**
+	 * Process events in order until one has to wait for authentication or the queue is empty.
+	 * The waiting event is completed by doEvents, which continues this loop.
+	 */
+	private void drainEvents(EVENT e)
+	{
+		while (e != null) {
+			final long wait = eventQueue.getWaitTime();
+			metrics.record(LatencyMetrics.STAGE_QUEUE_WAIT, wait);
+			OperationTracer.span(OperationTracer.STAGE_QUEUE, identifier, e.event, wait);
+			e.traced = OperationTracer.begin();
+			Map<String, Object> result = null;
+			if (coalesce) {
+				coalesceFollowing(e);
+			}
+
+			// batched operations are authenticated by their batch
+			final boolean authenticate = e.batch == null;
+			final boolean warm = takePrepared();
+			final long init = OperationTracer.begin();
+			switch (e.event) {
+				case EVENT_UPDATE:
+				case EVENT_SAVE:
+					result = initEncrypt(authenticate);
+					break;
+				case EVENT_READ:
+					result = readCached(e);
+					if (result == null) {
+						result = warm ? resumePrepared(authenticate) : initDecrypt(authenticate);
+					}
+					break;
+				case EVENT_PREPARE:
+					result = initDecrypt(false);
+					if (result == null) {
+						prepared = true;
+						preparedIn = preparedGeneration.get();
+						result = new HashMap<String, Object>();
+						result.put("identifier", identifier);
+						result.put("success", true);
+						result.put("code", 0);
+					}
+					break;
+				case EVENT_RESET:
+					result = doReset();
+					break;
+			}
+			OperationTracer.end(OperationTracer.STAGE_INIT, identifier, e.event, init);
+			if (result == null) {
+				if (e.batch != null) {
+					e.batch.ready(this, requiresAuthentication());
+					return;
+				}
+				if (requiresAuthentication()) {
+					return;
+				}
+				result = traceEvent(e, 0, null);
+			}
+			if (!completeEvent(e, result)) {
+				return;
+			}
+			e = eventQueue.next();
+		}
+	}
+
+	/**
+	 * Whether a read prepared by the previous event can be used, any event uses up the prepared state.
+	 * A read prepared with a data key cleared meanwhile is prepared again.
+	 */
+	private boolean takePrepared()
+	{
+		final boolean warm = prepared && preparedIn == preparedGeneration.get()
+							 && (envelopeCipher == null || envelopeGeneration == EnvelopeKeys.getGeneration());
+		prepared = false;
+		if (!warm) {
+			releaseDataKey();
+		}
+		return warm;
+	}
+
+	/**
+	 * Continue a read whose data was loaded and whose cipher was initialized by prepare.
+	 */
+	private Map<String, Object> resumePrepared(boolean authenticate)
+	{
+		if (authenticate && requiresAuthentication()) {
+			authenticate();
+		}
+		return null;
+	}
+
+	/**
+	 * Expire the prepared reads of all items, e.g. when the module is invalidated.
+	 */
+	public static void expirePrepared()
+	{
+		preparedGeneration.incrementAndGet();
+	}
+
+	/**
+	 * Merge queued writes of the same kind directly following a write into it, so only the
+	 * last value is written, and duplicate resets into a reset.
+	 */
+	private void coalesceFollowing(final EVENT e)
+	{
+		if (e.batch != null || !(e.isWrite() || e.event.equals(EVENT_RESET))) {
+			return;
+		}
+		e.merged = eventQueue.takeFollowing(new OperationQueue.Matcher<EVENT>() {
+			@Override
+			public boolean matches(EVENT operation)
+			{
+				return operation.batch == null && operation.event.equals(e.event);
+			}
+		});
+	}
+
+	/**
+	 * Dispatch the result of the current event and remove it from the queue. The result is
+	 * dispatched before the next event starts, so results of an item keep their order.
+	 * Every coalesced event receives the result as well, reads directly following a
+	 * successful coalescing write are answered with the written value.
+	 */
+	private boolean completeEvent(EVENT e, Map<String, Object> result)
+	{
+		final byte[] migrated = migrationValue;
+		migrationValue = null;
+		if (eventQueue.current() != e) {
+			if (migrated != null) {
+				Arrays.fill(migrated, (byte) 0);
+			}
+			return false;
+		}
+		OperationTracer.end(OperationTracer.STAGE_OPERATION, identifier, e.event, e.traced);
+		if (!prepared) {
+			releaseDataKey();
+		}
+		dispatchResult(e, result);
+		for (EVENT merged : e.merged) {
+			dispatchResult(merged, new HashMap<String, Object>(result));
+		}
+		if (migrated != null) {
+			migrate(migrated);
+		}
+		final byte[] written = e.effective().value;
+		if (coalesce && e.isWrite() && e.batch == null && written != null
+			&& Boolean.TRUE.equals(result.get("success"))) {
+			answerReads(written);
+		}
+		return eventQueue.finish(e);
+	}
+
+	/**
+	 * Re-encrypt a value read from data of the item's own cipher with the migration cipher.
+	 * This runs once the read's result was dispatched and before the next event, a failed
+	 * migration leaves the data as it was, to be migrated by a later read.
+	 */
+	private void migrate(byte[] value)
+	{
+		final long start = OperationTracer.begin();
+		try {
+			useTarget = true;
+			provisionTarget();
+			initCipher(Cipher.ENCRYPT_MODE, null);
+			if (!authenticationPending) {
+				dataCipher = targetCipher;
+				writeData(new EVENT(EVENT_SAVE, value, null, OUTPUT_STRING, null, null));
+			}
+		} catch (Exception e) {
+			if (keyProvider.isPermanentlyInvalidated(e)) {
+				try {
+					keyProvider.deleteKey(getTargetAlias());
+				} catch (Exception ex) {
+					// do nothing...
+				}
+				targetKey = null;
+			}
+		} finally {
+			useTarget = false;
+			Arrays.fill(value, (byte) 0);
+			OperationTracer.end(OperationTracer.STAGE_MIGRATE, identifier, EVENT_READ, start);
+		}
+	}
+
+	/**
+	 * Whether the value of a successful read is migrated. Keys requiring authentication for
+	 * every use would need another prompt, their data is migrated by the next write.
+	 */
+	private boolean shouldMigrate()
+	{
+		return isMigrating() && !useTarget && (!useFingerprintAuthentication() || authenticationValidity > 0);
+	}
+
+	private void answerReads(byte[] value)
+	{
+		final List<EVENT> reads = eventQueue.takeFollowing(new OperationQueue.Matcher<EVENT>() {
+			@Override
+			public boolean matches(EVENT operation)
+			{
+				return operation.batch == null && operation.event.equals(EVENT_READ)
+					&& operation.output != OUTPUT_CHUNKS;
+			}
+		});
+		for (EVENT read : reads) {
+			dispatchResult(read, readResult(read.output, Arrays.copyOf(value, value.length)));
+		}
+	}
+
+	/**
+	 * Result of a read answered without decrypting, the value is wiped or handed over.
+	 */
+	private Map<String, Object> readResult(int output, byte[] value)
+	{
+		Map<String, Object> result = new HashMap<String, Object>();
+		result.put("identifier", identifier);
+		result.put("success", true);
+		result.put("code", 0);
+		if (output == OUTPUT_BLOB) {
+			result.put("value", value);
+		} else {
+			result.put("value", new String(value, StandardCharsets.UTF_8));
+			Arrays.fill(value, (byte) 0);
+		}
+		return result;
+	}
+
+	/**
+	 * Whether a read may be answered without authenticating: always without biometric access
+	 * control, for namespace items while their data key is unlocked, otherwise only within the
+	 * window opened by the item's last authentication.
+	 */
+	private boolean isUnlocked()
+	{
+		if (authenticator == null || !useFingerprintAuthentication()) {
+			return true;
+		}
+		if (namespace != null) {
+			return EnvelopeKeys.isUnlocked(getKeyAlias());
+		}
+		return authenticationValidity > 0 && authenticated
+			&& System.nanoTime() - authenticatedAt < TimeUnit.SECONDS.toNanos(authenticationValidity);
+	}
+
+	/**
+	 * Answer a read from the plaintext cache, returns null if the value is not cached or the
+	 * read has to authenticate.
+	 */
+	private Map<String, Object> readCached(EVENT e)
+	{
+		if (cacheTimeout <= 0 || e.output == OUTPUT_CHUNKS || !isUnlocked()) {
+			return null;
+		}
+		final byte[] value = PlaintextCache.get(identifier);
+		return value != null ? readResult(e.output, value) : null;
+	}
+
+	private void dispatchResult(EVENT e, Map<String, Object> result)
+	{
+		if (e.batch != null) {
+			e.batch.complete(this, result);
+		} else if (e.completion != null) {
+			e.completion.onComplete(result);
+		} else {
+			listener.onResult(e.event, result);
+		}
+	}
+
+	/**
+	 * Complete the current event once it was authenticated (or failed to), then continue
+	 * with the queued events.
+	 */
+	protected void doEvents(int errorCode, String message)
+	{
+		final EVENT e = eventQueue.current();
+		if (e != null && completeEvent(e, traceEvent(e, errorCode, message))) {
+			drainEvents(eventQueue.next());
+		}
+	}
+
+	private Map<String, Object> traceEvent(EVENT e, int errorCode, String message)
+	{
+		final long start = OperationTracer.begin();
+		final Map<String, Object> result = performEvent(e, errorCode, message);
+		OperationTracer.end(OperationTracer.STAGE_PERFORM, identifier, e.event, start);
+		return result;
+	}
+
+	private Map<String, Object> performEvent(EVENT e, int errorCode, String message)
+	{
+		Map<String, Object> result = null;
+		if (errorCode != 0) {
+			result = new HashMap<String, Object>();
+			result.put("success", false);
+			result.put("code", errorCode);
+			result.put("error", message);
+		} else if (authenticationPending) {
+			result = resumeCipher(e);
+		}
+		if (result == null && unwrapping) {
+			result = unlockEnvelope(e);
+		}
+		if (result == null) {
+			switch (e.event) {
+				case EVENT_UPDATE:
+					if (!exists()) {
+						result = new HashMap<String, Object>();
+						result.put("success", false);
+						result.put("code", -1);
+						result.put("error", "could not update, item does not exist.");
+						break;
+					}
+				case EVENT_SAVE:
+					result = doEncrypt(e.effective());
+					break;
+				case EVENT_READ:
+					result = doDecrypt(e.output);
+					break;
+			}
+		}
+		return result;
+	}
+
+	private Map<String, Object> initEncrypt(boolean authenticate)
+	{
+		if (namespace != null) {
+			return initEnvelope(Cipher.ENCRYPT_MODE, authenticate);
+		}
+		try {
+			// new data is written with the migration cipher
+			useTarget = isMigrating();
+			if (useTarget) {
+				provisionTarget();
+			}
+
+			// initialize encryption cipher
+			initCipher(Cipher.ENCRYPT_MODE, null);
+			dataCipher = getActiveCipher();
+
+			// fingerprint authentication
+			if (authenticate && requiresAuthentication()) {
+				authenticate();
+			}
+
+		} catch (Exception e) {
+			return initError(e);
+		}
+		return null;
+	}
+
+	private Map<String, Object> doEncrypt(EVENT e)
+	{
+		Map<String, Object> result = new HashMap<String, Object>();
+		result.put("identifier", identifier);
+		PlaintextCache.invalidate(identifier);
+		try {
+			writeData(e);
+
+			result.put("success", true);
+			result.put("code", 0);
+		} catch (Exception ex) {
+			result.put("success", false);
+			result.put("code", -1);
+			result.put("error", ex.getMessage());
+		}
+		return result;
+	}
+
+	/**
+	 * Encrypt the value of an event with the initialized data cipher and write it to storage.
+	 *
+	 * Layout: header, IV, encrypted data. The header is left out for transformations it can
+	 * not describe.
+	 */
+	private void writeData(EVENT e) throws GeneralSecurityException, IOException
+	{
+		if (segmentSize > 0) {
+			doEncryptSegmented(e);
+			return;
+		}
+
+		// encrypt data behind the header and IV into a single buffer
+		final String transformation = getDataTransformation();
+		final int headerSize = ItemHeader.getCipherId(transformation) != 0 ? ItemHeader.SIZE : 0;
+		byte[] iv = dataCipher.getIV();
+		ByteBuffer data = ByteBuffer.wrap(e.value);
+		ByteBuffer encryptedData =
+			ByteBuffer.allocate(headerSize + iv.length + dataCipher.getOutputSize(data.remaining()));
+		encryptedData.position(headerSize);
+		encryptedData.put(iv);
+		dataCipher.doFinal(data, encryptedData);
+		encryptedData.flip();
+
+		// the payload length is known once the data is encrypted
+		if (headerSize > 0) {
+			ItemHeader.write(encryptedData.duplicate(), transformation, getDataFlags(),
+							 encryptedData.remaining() - headerSize);
+		}
+
+		// save header, IV and encrypted data to private storage
+		final long size = encryptedData.remaining();
+		final long start = System.nanoTime();
+		KeychainWriter.write(storage, identifier, encryptedData, durability);
+		metrics.record(LatencyMetrics.STAGE_STORAGE_WRITE, System.nanoTime() - start);
+		catalogWrite(size);
+	}
+
+	private void catalogWrite(long size)
+	{
+		if (catalog != null) {
+			catalog.put(identifier, storage, size, getDataTransformation(), accessControlMode, namespace);
+		}
+	}
+
+	/**
+	 * Transformation of the data cipher, envelope items are encrypted in-process.
+	 */
+	private String getDataTransformation()
+	{
+		if (namespace != null) {
+			return ENVELOPE_TRANSFORMATION;
+		}
+		return useTarget ? migrationCipher : getCipher();
+	}
+
+	private int getDataFlags()
+	{
+		return (namespace != null ? ItemHeader.FLAG_ENVELOPE : 0) | (segmentSize > 0 ? ItemHeader.FLAG_SEGMENTED : 0);
+	}
+
+	/**
+	 * Encrypt a value with a random key in segments, streaming it to storage.
+	 * Only the key is encrypted by the key store cipher.
+	 *
+	 * Layout: header, IV, wrapped key length (2), wrapped key, segmented data.
+	 */
+	private void doEncryptSegmented(EVENT e) throws GeneralSecurityException, IOException
+	{
+		final byte[] iv = dataCipher.getIV();
+		final byte[] dataKey = SegmentedCipher.generateKey();
+		final byte[] wrappedKey;
+		final SegmentedCipher segmentedCipher;
+		try {
+			wrappedKey = dataCipher.doFinal(dataKey);
+			segmentedCipher = new SegmentedCipher(dataKey);
+		} finally {
+			Arrays.fill(dataKey, (byte) 0);
+		}
+
+		final long length = e.source != null ? e.source.getLength() : e.value.length;
+		final String transformation = getDataTransformation();
+		final int headerSize = ItemHeader.getCipherId(transformation) != 0 ? ItemHeader.SIZE : 0;
+		final long payloadLength =
+			iv.length + 2 + wrappedKey.length + SegmentedCipher.getEncryptedSize(length, segmentSize);
+
+		final ByteBuffer header = ByteBuffer.allocate(headerSize + iv.length + 2 + wrappedKey.length);
+		if (headerSize > 0) {
+			ItemHeader.write(header, transformation, getDataFlags(), payloadLength);
+		}
+		header.put(iv).putShort((short) wrappedKey.length).put(wrappedKey);
+		header.flip();
+
+		final long start = System.nanoTime();
+		final InputStream in = e.source != null ? e.source.open() : new ByteArrayInputStream(e.value);
+		final SegmentedCipher.Encryptor encryptor = segmentedCipher.encrypt(in, length, segmentSize, header);
+		try {
+			KeychainWriter.write(storage, identifier, headerSize + payloadLength, encryptor, durability);
+		} finally {
+			encryptor.close();
+		}
+
+		// segments are encrypted while they are written
+		metrics.record(LatencyMetrics.STAGE_STORAGE_WRITE, System.nanoTime() - start);
+		catalogWrite(headerSize + payloadLength);
+	}
+
+	private void readData() throws IOException
+	{
+		final long start = System.nanoTime();
+		encryptedData = storage.read(identifier);
+		metrics.record(LatencyMetrics.STAGE_STORAGE_READ, System.nanoTime() - start);
+	}
+
+	/**
+	 * Parse the header of the loaded data. Data without one was written by a former version
+	 * and is laid out according to the item's properties.
+	 */
+	private ItemHeader readHeader() throws IOException
+	{
+		final ItemHeader header = ItemHeader.read(encryptedData);
+		if (header != null && ((header.flags & ItemHeader.FLAG_ENVELOPE) != 0) != (namespace != null)) {
+			throw new IOException(namespace != null ? "keychain data is not encrypted by the namespace key!"
+													: "keychain data is encrypted by a namespace key!");
+		}
+		segmentedData = header != null ? header.isSegmented() : segmentSize > 0;
+		return header;
+	}
+
+	private Map<String, Object> initDecrypt(boolean authenticate)
+	{
+		if (namespace != null) {
+			return initEnvelope(Cipher.DECRYPT_MODE, authenticate);
+		}
+		try {
+			// load header, IV and encrypted data from private storage
+			readData();
+			final ItemHeader header = readHeader();
+
+			// data of the migration cipher is decrypted with its key
+			useTarget = header != null && isMigrating() && header.getTransformation().equals(migrationCipher);
+			if (useTarget) {
+				provisionTarget();
+			} else if (header != null && !header.getTransformation().equals(getCipher())) {
+				throw new IOException("keychain data is encrypted with " + header.getTransformation() + "!");
+			}
+			final int length = header != null ? header.ivLength : ivSize;
+			if (encryptedData.remaining() < length) {
+				throw new IOException("keychain data is corrupt!");
+			}
+
+			// read IV, leaving the buffer positioned at the encrypted data
+			byte[] iv = new byte[length];
+			encryptedData.get(iv);
+
+			// initialize decryption cipher
+			initCipher(Cipher.DECRYPT_MODE, iv);
+			dataCipher = getActiveCipher();
+
+			// fingerprint authentication
+			if (authenticate && requiresAuthentication()) {
+				authenticate();
+			}
+
+		} catch (Exception e) {
+			return initError(e);
+		}
+		return null;
+	}
+
+	/**
+	 * Result of a cipher initialization that failed.
+	 */
+	private Map<String, Object> initError(Exception e)
+	{
+		Map<String, Object> result = new HashMap<String, Object>();
+		result.put("identifier", identifier);
+		result.put("success", false);
+		result.put("code", -1);
+		if (e instanceof FileNotFoundException) {
+			result.put("error", "keychain data does not exist!");
+		} else if (e instanceof InvalidKeyException && key == null) {
+			result.put("code", ERROR_PASSCODE_NOT_SET);
+			result.put("error", "device is not secure, could not generate key!");
+		} else if (keyProvider.isPermanentlyInvalidated(e)) {
+			result.put("code", ERROR_KEY_PERMANENTLY_INVALIDATED);
+			result.put("error", "key permantently invalidated!");
+
+			try {
+				keyProvider.deleteKey(getActiveAlias());
+				if (useTarget) {
+					targetKey = null;
+				}
+
+				// the namespace's data key can not be unwrapped anymore
+				if (namespace != null) {
+					keyStorage.delete(getKeyAlias());
+				}
+			} catch (Exception ex) {
+				// do nothing...
+			}
+		} else {
+			result.put("error", e.getMessage());
+		}
+		return result;
+	}
+
+	/**
+	 * Prepare an operation of an envelope item. With the namespace's data key unlocked the data
+	 * is processed in-process right away, otherwise the key store cipher is initialized to
+	 * unwrap the data key (or wrap a new one) first, authenticated like any other operation.
+	 */
+	private Map<String, Object> initEnvelope(int mode, boolean authenticate)
+	{
+		try {
+			useTarget = false;
+			unwrapping = false;
+			wrappedDataKey = null;
+			if (mode == Cipher.DECRYPT_MODE) {
+				readData();
+				readHeader();
+			}
+
+			final int generation = EnvelopeKeys.getGeneration();
+			final SecretKeySpec dataKey = EnvelopeKeys.getKey(getKeyAlias());
+			if (dataKey != null) {
+				initDataCipher(mode, dataKey, generation);
+				return null;
+			}
+
+			unwrapping = true;
+			final String alias = getKeyAlias();
+			if (keyStorage.exists(alias)) {
+				wrappedDataKey = keyStorage.read(alias);
+				if (wrappedDataKey.remaining() < ENVELOPE_IV_SIZE) {
+					throw new IOException("namespace key is corrupt!");
+				}
+				byte[] iv = new byte[ENVELOPE_IV_SIZE];
+				wrappedDataKey.get(iv);
+				initCipher(Cipher.DECRYPT_MODE, iv);
+			} else {
+				initCipher(Cipher.ENCRYPT_MODE, null);
+			}
+
+			// fingerprint authentication
+			if (authenticate && requiresAuthentication()) {
+				authenticate();
+			}
+
+		} catch (Exception e) {
+			return initError(e);
+		}
+		return null;
+	}
+
+	/**
+	 * Unwrap the namespace's data key, or create and wrap it if the namespace has none yet,
+	 * once the key store cipher is authenticated. Then prepare the data cipher of the event.
+	 */
+	private Map<String, Object> unlockEnvelope(EVENT e)
+	{
+		try {
+			SecretKeySpec dataKey;
+			final int generation;
+			synchronized (EnvelopeKeys.lock(getKeyAlias()))
+			{
+				generation = EnvelopeKeys.getGeneration();
+				dataKey = EnvelopeKeys.getKey(getKeyAlias());
+				if (dataKey == null) {
+					final byte[] rawKey;
+					if (wrappedDataKey != null) {
+						final byte[] wrapped = new byte[wrappedDataKey.remaining()];
+						wrappedDataKey.get(wrapped);
+						rawKey = cipher.doFinal(wrapped);
+						dataKey = EnvelopeKeys.putKey(getKeyAlias(), rawKey);
+						Arrays.fill(rawKey, (byte) 0);
+					} else {
+						// an unlocked session might have been ended while creating the key
+						if (keyStorage.exists(getKeyAlias())) {
+							throw new IOException("namespace key was created concurrently, try again.");
+						}
+						rawKey = new byte[EnvelopeKeys.KEY_SIZE];
+						random.nextBytes(rawKey);
+						final byte[] iv = cipher.getIV();
+						final byte[] wrapped = cipher.doFinal(rawKey);
+						final ByteBuffer data = ByteBuffer.allocate(iv.length + wrapped.length);
+						data.put(iv).put(wrapped);
+						data.flip();
+						KeychainWriter.write(keyStorage, getKeyAlias(), data, KeychainWriter.DURABILITY_STRICT);
+						dataKey = EnvelopeKeys.putKey(getKeyAlias(), rawKey);
+						Arrays.fill(rawKey, (byte) 0);
+					}
+				}
+			}
+			unwrapping = false;
+			wrappedDataKey = null;
+			initDataCipher(e.event.equals(EVENT_READ) ? Cipher.DECRYPT_MODE : Cipher.ENCRYPT_MODE, dataKey,
+						   generation);
+		} catch (Exception ex) {
+			unwrapping = false;
+			wrappedDataKey = null;
+			return initError(ex);
+		}
+		return null;
+	}
+
+	/**
+	 * Initialize the in-process cipher of an envelope item with the data key. For decryption
+	 * the IV is read from the loaded data, leaving it positioned at the encrypted data.
+	 */
+	private void initDataCipher(int mode, SecretKeySpec dataKey, int generation)
+		throws GeneralSecurityException, IOException
+	{
+		if (envelopeCipher == null) {
+			envelopeCipher = Cipher.getInstance(ENVELOPE_TRANSFORMATION);
+		}
+		final byte[] iv = new byte[ENVELOPE_IV_SIZE];
+		if (mode == Cipher.ENCRYPT_MODE) {
+			random.nextBytes(iv);
+		} else {
+			if (encryptedData.remaining() < ENVELOPE_IV_SIZE) {
+				throw new IOException("keychain data is corrupt!");
+			}
+			encryptedData.get(iv);
+		}
+		envelopeCipher.init(mode, dataKey, new GCMParameterSpec(ENVELOPE_TAG_SIZE * 8, iv));
+		dataCipher = envelopeCipher;
+		envelopeGeneration = generation;
+	}
+
+	/**
+	 * Drop the in-process cipher, it holds a copy of the data key that would outlive clearing it.
+	 */
+	private void releaseDataKey()
+	{
+		if (envelopeCipher != null) {
+			if (dataCipher == envelopeCipher) {
+				dataCipher = null;
+			}
+			envelopeCipher = null;
+		}
+	}
+
+	private Map<String, Object> doDecrypt(int output)
+	{
+		Map<String, Object> result = new HashMap<String, Object>();
+		result.put("identifier", identifier);
+		try {
+			// data was loaded by initDecrypt
+			if (encryptedData == null) {
+				throw new FileNotFoundException();
+			}
+
+			if (segmentedData) {
+				doDecryptSegmented(output, result);
+				encryptedData = null;
+				return result;
+			}
+
+			// decrypt data following the IV
+			ByteBuffer data = ByteBuffer.allocate(dataCipher.getOutputSize(encryptedData.remaining()));
+			dataCipher.doFinal(encryptedData, data);
+			encryptedData = null;
+			if (cacheTimeout > 0) {
+				PlaintextCache.put(identifier, data.array(), 0, data.position(), cacheTimeout);
+			}
+			if (shouldMigrate()) {
+				migrationValue = Arrays.copyOf(data.array(), data.position());
+			}
+
+			result.put("success", true);
+			result.put("code", 0);
+			if (output != OUTPUT_STRING) {
+				result.put("value", Arrays.copyOf(data.array(), data.position()));
+			} else {
+				String decrypted =
+					new String(data.array(), 0, data.position(), StandardCharsets.UTF_8).replace("\u0000+$", "");
+				result.put("value", decrypted);
+			}
+		} catch (Exception e) {
+			result.put("success", false);
+			result.put("code", -1);
+			if (e instanceof FileNotFoundException) {
+				result.put("error", "keychain data does not exist!");
+			} else {
+				result.put("error", e.getMessage());
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Decrypt a segmented value one segment at a time. Chunked reads report a chunk
+	 * per segment and wait for the listener to consume it before decrypting the next, otherwise the segments are decrypted into a buffer of the value's size.
+	 */
+	private void doDecryptSegmented(int output, Map<String, Object> result)
+		throws GeneralSecurityException, IOException
+	{
+		if (encryptedData.remaining() < 2) {
+			throw new IOException("keychain data is corrupt!");
+		}
+		final byte[] wrappedKey = new byte[encryptedData.getShort() & 0xffff];
+		if (encryptedData.remaining() < wrappedKey.length) {
+			throw new IOException("keychain data is corrupt!");
+		}
+		encryptedData.get(wrappedKey);
+
+		final byte[] dataKey = dataCipher.doFinal(wrappedKey);
+		final SegmentedCipher.Decryptor decryptor;
+		try {
+			decryptor = new SegmentedCipher(dataKey).decrypt(encryptedData);
+		} finally {
+			Arrays.fill(dataKey, (byte) 0);
+		}
+		if (decryptor.getLength() > Integer.MAX_VALUE) {
+			throw new IOException("keychain data is too large!");
+		}
+
+		final byte[] value = output != OUTPUT_CHUNKS ? new byte[(int) decryptor.getLength()] : null;
+		int position = 0;
+		int index = 0;
+		ByteBuffer segment;
+		while ((segment = decryptor.next()) != null) {
+			final int length = segment.remaining();
+			if (value != null) {
+				segment.get(value, position, length);
+			} else {
+				final Map<String, Object> chunk = new HashMap<String, Object>();
+				chunk.put("identifier", identifier);
+				chunk.put("index", index);
+				chunk.put("offset", position);
+				chunk.put("value", Arrays.copyOf(segment.array(), length));
+				listener.onChunk(chunk);
+			}
+			position += length;
+			index++;
+		}
+		decryptor.wipe();
+		if (value != null) {
+			if (cacheTimeout > 0) {
+				PlaintextCache.put(identifier, value, 0, value.length, cacheTimeout);
+			}
+			if (shouldMigrate()) {
+				migrationValue = Arrays.copyOf(value, value.length);
+			}
+		}
+
+		result.put("success", true);
+		result.put("code", 0);
+		if (output == OUTPUT_CHUNKS) {
+			result.put("length", position);
+		} else if (output == OUTPUT_BLOB) {
+			result.put("value", value);
+		} else {
+			result.put("value", new String(value, StandardCharsets.UTF_8));
+			Arrays.fill(value, (byte) 0);
+		}
+	}
+
+	private Map<String, Object> doReset()
+	{
+		Map<String, Object> result = new HashMap<String, Object>();
+		boolean deleted = false;
+
+		// drop cached key handle and value
+		keyProvider.evictKey(identifier);
+		if (migrationCipher != null) {
+			keyProvider.evictKey(getTargetAlias());
+		}
+		PlaintextCache.invalidate(identifier);
+
+		// delete data from private storage
+		if (storage.exists(identifier)) {
+			deleted = storage.delete(identifier);
+			if (!deleted) {
+				result.put("error", "could not delete data");
+			}
+		}
+
+		if (catalog != null && (deleted || !storage.exists(identifier))) {
+			catalog.remove(identifier);
+		}
+
+		result.put("success", deleted);
+		result.put("code", deleted ? 0 : -1);
+		return result;
+	}
+
+	public boolean exists()
+	{
+		return storage.exists(identifier);
+	}
+
+	private void enqueue(EVENT e)
+	{
+		eventQueue.add(e);
+		processEvents();
+	}
+
+	protected void enqueue(String event, byte[] value, Batch batch)
+	{
+		enqueue(new EVENT(event, value, null, OUTPUT_STRING, batch, null));
+	}
+
+	/**
+	 * Drop all queued events, the event currently processed still completes. Batched events
+	 * and events with a completion are completed as cancelled.
+	 */
+	public void resetEvents()
+	{
+		for (EVENT e : eventQueue.clear()) {
+			if (e.batch != null || e.completion != null) {
+				Map<String, Object> result = new HashMap<String, Object>();
+				result.put("identifier", identifier);
+				result.put("success", false);
+				result.put("code", ERROR_AUTHENTICATION_FAILED);
+				result.put("error", "operation cancelled.");
+				dispatchResult(e, result);
+			}
+		}
+	}
+
+	/**
+	 * Number of queued events and how long they waited before being processed.
+	 */
+	public Map<String, Object> getQueueStatistics()
+	{
+		return eventQueue.getStatistics();
+	}
+
+	public void save(byte[] value)
+	{
+		enqueue(new EVENT(EVENT_SAVE, value, null, OUTPUT_STRING, null, null));
+	}
+
+	/**
+	 * Save a value streamed from its source, segmented items only.
+	 */
+	public void save(Source source)
+	{
+		enqueue(new EVENT(EVENT_SAVE, null, source, OUTPUT_STRING, null, null));
+	}
+
+	public void update(byte[] value)
+	{
+		enqueue(new EVENT(EVENT_UPDATE, value, null, OUTPUT_STRING, null, null));
+	}
+
+	public void update(Source source)
+	{
+		enqueue(new EVENT(EVENT_UPDATE, null, source, OUTPUT_STRING, null, null));
+	}
+
+	/**
+	 * Load the stored data and initialize the cipher of a following read ahead of time, so the
+	 * read only has to authenticate. Any other operation in between expires the prepared read.
+	 */
+	public void prepare()
+	{
+		enqueue(new EVENT(EVENT_PREPARE, null, null, OUTPUT_STRING, null, null));
+	}
+
+	/**
+	 * Read the value as String, byte array or in chunks, see OUTPUT_STRING, OUTPUT_BLOB and OUTPUT_CHUNKS.
+	 */
+	public void read(int output)
+	{
+		enqueue(new EVENT(EVENT_READ, null, null, output, null, null));
+	}
+
+	public void reset()
+	{
+		enqueue(new EVENT(EVENT_RESET, null, null, OUTPUT_STRING, null, null));
+	}
+
+	/**
+	 * Queue an operation whose result is passed to the completion instead of the listener,
+	 * chunks of chunked reads are still reported to the listener.
+	 */
+	public void submit(String event, byte[] value, Source source, int output, Completion completion)
+	{
+		if (!(event.equals(EVENT_SAVE) || event.equals(EVENT_UPDATE) || event.equals(EVENT_READ)
+			  || event.equals(EVENT_RESET) || event.equals(EVENT_PREPARE))) {
+			throw new IllegalArgumentException("unknown operation: " + event);
+		}
+		enqueue(new EVENT(event, value, source, output, null, completion));
+	}
+}
@@ -6,41 +6,30 @@
  */
 package ti.identity;
 
-import android.app.KeyguardManager;
 import android.content.Context;
 import android.os.Build;
-import android.security.keystore.KeyGenParameterSpec;
-import android.security.keystore.KeyPermanentlyInvalidatedException;
-import android.security.keystore.KeyProperties;
 import androidx.biometric.BiometricManager;
 import androidx.biometric.BiometricPrompt;
-import androidx.biometric.BiometricPrompt.AuthenticationCallback;
-import androidx.fragment.app.FragmentActivity;
-import java.io.BufferedInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
-import java.security.InvalidKeyException;
-import java.security.KeyStore;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
+import java.util.Map;
 import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
-import javax.crypto.Cipher;
-import javax.crypto.CipherInputStream;
-import javax.crypto.KeyGenerator;
-import javax.crypto.SecretKey;
-import javax.crypto.spec.IvParameterSpec;
 import org.appcelerator.kroll.KrollDict;
 import org.appcelerator.kroll.KrollFunction;
+import org.appcelerator.kroll.KrollPromise;
 import org.appcelerator.kroll.KrollProxy;
 import org.appcelerator.kroll.annotations.Kroll;
 import org.appcelerator.kroll.common.Log;
 import org.appcelerator.titanium.TiApplication;
+import org.appcelerator.titanium.TiBlob;
+import org.appcelerator.titanium.util.TiConvert;
+import ti.modules.titanium.BufferProxy;
 
+/**
+ * Exposes a KeychainEngine, backed by the Android key store and the biometric prompt, to JS.
+ */
 @Kroll.proxy(creatableInModule = TitaniumIdentityModule.class)
 public class KeychainItemProxy extends KrollProxy
 {
@@ -51,123 +40,114 @@ public class KeychainItemProxy extends KrollProxy
 	public static final String PROPERTY_CIPHER = "cipher";
 	public static final String PROPERTY_ACCESSIBILITY_MODE = "accessibilityMode";
 	public static final String PROPERTY_ACCESS_CONTROL_MODE = "accessControlMode";
-
-	public static final String EVENT_SAVE = "save";
-	public static final String EVENT_READ = "read";
-	public static final String EVENT_UPDATE = "update";
-	public static final String EVENT_RESET = "reset";
+	public static final String PROPERTY_AUTHENTICATION_VALIDITY = "authenticationValidity";
+	public static final String PROPERTY_STORAGE = "storage";
+	public static final String PROPERTY_SEGMENT_SIZE = "segmentSize";
+	public static final String PROPERTY_DURABILITY = "durability";
+	public static final String PROPERTY_COALESCE = "coalesce";
+	public static final String PROPERTY_CACHE_TIMEOUT = "cacheTimeout";
+	public static final String PROPERTY_NAMESPACE = "namespace";
+	public static final String PROPERTY_MIGRATION_CIPHER = "migrationCipher";
+
+	public static final String EVENT_SAVE = KeychainEngine.EVENT_SAVE;
+	public static final String EVENT_READ = KeychainEngine.EVENT_READ;
+	public static final String EVENT_UPDATE = KeychainEngine.EVENT_UPDATE;
+	public static final String EVENT_RESET = KeychainEngine.EVENT_RESET;
+	public static final String EVENT_CHUNK = KeychainEngine.EVENT_CHUNK;
+	public static final String EVENT_PREPARE = KeychainEngine.EVENT_PREPARE;
 
 	public static final int ACCESSIBLE_ALWAYS = 0;
 	public static final int ACCESSIBLE_ALWAYS_THIS_DEVICE_ONLY = 1;
 	public static final int ACCESSIBLE_WHEN_PASSCODE_SET_THIS_DEVICE_ONLY = 2;
 
-	public static final int ACCESS_CONTROL_USER_PRESENCE = 1;
-	public static final int ACCESS_CONTROL_DEVICE_PASSCODE = 2;
-	public static final int ACCESS_CONTROL_TOUCH_ID_ANY = 4;
-	public static final int ACCESS_CONTROL_TOUCH_ID_CURRENT_SET = 8;
-
-	private KeyStore keyStore;
-	private SecretKey key;
-	private Cipher cipher;
-	private int ivSize = 16;
-	private BiometricPrompt.CryptoObject cryptoObject;
-
-	private String algorithm = KeyProperties.KEY_ALGORITHM_AES;
-	private String blockMode = KeyProperties.BLOCK_MODE_CBC;
-	private String padding = KeyProperties.ENCRYPTION_PADDING_PKCS7;
+	public static final int ACCESS_CONTROL_USER_PRESENCE = KeychainEngine.ACCESS_CONTROL_USER_PRESENCE;
+	public static final int ACCESS_CONTROL_DEVICE_PASSCODE = KeychainEngine.ACCESS_CONTROL_DEVICE_PASSCODE;
+	public static final int ACCESS_CONTROL_TOUCH_ID_ANY = KeychainEngine.ACCESS_CONTROL_TOUCH_ID_ANY;
+	public static final int ACCESS_CONTROL_TOUCH_ID_CURRENT_SET = KeychainEngine.ACCESS_CONTROL_TOUCH_ID_CURRENT_SET;
 
-	protected BiometricManager biometricManager;
-	protected BiometricPrompt.PromptInfo biometricPromptInfo;
-	private BiometricPrompt.AuthenticationCallback authenticationCallback;
+	public static final int STORAGE_FILE = 0;
+	public static final int STORAGE_VAULT = 1;
 
-	private String identifier = "";
+	private final KeychainEngine engine;
 	private int accessibilityMode = 0;
-	private int accessControlMode = 0;
-	private KeyguardManager keyguardManager;
-	private String suffix = "_kc.dat";
+	private int storageMode = STORAGE_FILE;
 	private Context context;
 
-	private class EVENT
-	{
-		public final String event;
-		public final String value;
-
-		public EVENT(String event, String value)
-		{
-			this.event = event;
-			this.value = value;
-		}
-
-		public EVENT(String event)
-		{
-			this.event = event;
-			this.value = null;
-		}
-	}
-	private List<EVENT> eventQueue = new ArrayList<EVENT>();
-	private boolean eventBusy = false;
-
 	@SuppressWarnings("NewApi")
 	public KeychainItemProxy()
 	{
 		super();
 
-		defaultValues.put(PROPERTY_ACCESSIBILITY_MODE, 0);
-		defaultValues.put(PROPERTY_ACCESS_CONTROL_MODE, 0);
-		defaultValues.put(PROPERTY_CIPHER, getCipher());
-
+		KeychainStorage storage = null;
+		Authenticator authenticator = null;
 		try {
 			context = TiApplication.getAppRootOrCurrentActivity();
+			storage = new FileKeychainStorage(context.getFilesDir());
 
 			// fingerprint authentication
 			if (Build.VERSION.SDK_INT >= 23) {
-				keyguardManager = context.getSystemService(KeyguardManager.class);
-				biometricManager = BiometricManager.from(context);
-				authenticationCallback = new AuthenticationCallback() {
-					@Override
-					public void onAuthenticationError(int errorCode, CharSequence errString)
-					{
-						switch (errorCode) {
-							case BiometricPrompt.ERROR_USER_CANCELED:
-							case BiometricPrompt.ERROR_CANCELED:
-							case BiometricPrompt.ERROR_NEGATIVE_BUTTON:
-								doEvents(TitaniumIdentityModule.ERROR_AUTHENTICATION_FAILED, errString.toString());
-								break;
-							default:
-								doEvents(errorCode, errString.toString());
-						}
-					}
-
-					@Override
-					public void onAuthenticationSucceeded(BiometricPrompt.AuthenticationResult result)
-					{
-						doEvents(0, null);
-					}
-
-					@Override
-					public void onAuthenticationFailed()
-					{
-						doEvents(TitaniumIdentityModule.ERROR_AUTHENTICATION_FAILED,
-								 "failed to authenticate fingerprint!");
-					}
-				};
-
 				final BiometricPrompt.PromptInfo.Builder promptInfo = new BiometricPrompt.PromptInfo.Builder();
 				promptInfo.setTitle(TitaniumIdentityModule.reason);
 				promptInfo.setSubtitle(TitaniumIdentityModule.reasonSubtitle);
 				promptInfo.setDescription(TitaniumIdentityModule.reasonText);
 				promptInfo.setNegativeButtonText(TitaniumIdentityModule.negativeButtonText);
 				promptInfo.setConfirmationRequired(TitaniumIdentityModule.confirmationRequired);
-				biometricPromptInfo = promptInfo.build();
+				promptInfo.setAllowedAuthenticators(BiometricManager.Authenticators.BIOMETRIC_STRONG);
+				authenticator = new BiometricAuthenticator(promptInfo.build());
 			}
 
 			// load Android key store
-			keyStore = KeyStore.getInstance("AndroidKeyStore");
-			keyStore.load(null);
+			KeyCache.getKeyStore();
 
 		} catch (Exception e) {
 			Log.e(TAG, "could not load Android key store: " + e.getMessage());
 		}
+
+		engine = new KeychainEngine(AndroidKeyProvider.INSTANCE, authenticator, storage, new KeychainEngine.Listener() {
+			@Override
+			public void onResult(String event, Map<String, Object> result)
+			{
+				fireEvent(event, toKrollDict(result));
+			}
+
+			@Override
+			public void onChunk(Map<String, Object> chunk)
+			{
+				// wait for the listeners, so only one decrypted chunk is pending at a time
+				fireSyncEvent(EVENT_CHUNK, toKrollDict(chunk));
+			}
+		});
+		engine.setDurability(TitaniumIdentityModule.getDefaultDurability());
+		if (context != null) {
+			engine.setCatalog(ItemCatalog.getInstance(context.getFilesDir()));
+		}
+
+		defaultValues.put(PROPERTY_ACCESSIBILITY_MODE, 0);
+		defaultValues.put(PROPERTY_ACCESS_CONTROL_MODE, 0);
+		defaultValues.put(PROPERTY_AUTHENTICATION_VALIDITY, 0);
+		defaultValues.put(PROPERTY_STORAGE, STORAGE_FILE);
+		defaultValues.put(PROPERTY_SEGMENT_SIZE, 0);
+		defaultValues.put(PROPERTY_COALESCE, false);
+		defaultValues.put(PROPERTY_CACHE_TIMEOUT, 0);
+		defaultValues.put(PROPERTY_CIPHER, getCipher());
+	}
+
+	/**
+	 * The engine reports binary values as byte arrays, JS receives them as blobs.
+	 */
+	private static KrollDict toKrollDict(Map<String, Object> result)
+	{
+		final KrollDict dict = new KrollDict(result);
+		final Object value = result.get("value");
+		if (value instanceof byte[]) {
+			dict.put("value", TiBlob.blobFromData((byte[]) value));
+		}
+		return dict;
+	}
+
+	protected KeychainEngine getEngine()
+	{
+		return engine;
 	}
 
 	@Kroll.getProperty
@@ -181,348 +161,214 @@ public class KeychainItemProxy extends KrollProxy
 	@Kroll.method
 	public int getAccessControlMode()
 	{
-		return accessControlMode;
+		return engine.getAccessControlMode();
 	}
 
 	@Kroll.getProperty
 	@Kroll.method
-	private String getCipher()
+	public int getAuthenticationValidity()
 	{
-		return algorithm + "/" + blockMode + "/" + padding;
+		return engine.getAuthenticationValidity();
 	}
 
 	@Kroll.getProperty
 	@Kroll.method
-	private String getIdentifier()
+	public int getStorage()
 	{
-		return identifier;
+		return storageMode;
 	}
 
-	private boolean useFingerprintAuthentication()
+	@Kroll.getProperty
+	@Kroll.method
+	public int getDurability()
 	{
-		if ((accessControlMode & (ACCESS_CONTROL_TOUCH_ID_ANY | ACCESS_CONTROL_TOUCH_ID_CURRENT_SET)) != 0) {
-			return true;
-		}
-		return false;
+		return engine.getDurability();
 	}
 
-	private void processEvents()
+	@Kroll.getProperty
+	@Kroll.method
+	public boolean getCoalesce()
 	{
-		if (!eventBusy && !eventQueue.isEmpty()) {
-			eventBusy = true;
-
-			EVENT e = eventQueue.get(0);
-			KrollDict result = null;
-			switch (e.event) {
-				case EVENT_UPDATE:
-				case EVENT_SAVE:
-					result = initEncrypt();
-					break;
-				case EVENT_READ:
-					result = initDecrypt();
-					break;
-				case EVENT_RESET:
-					result = doReset();
-					break;
-			}
-			if (result != null) {
-				fireEvent(e.event, result);
-				eventQueue.remove(e);
-				eventBusy = false;
-				processEvents();
-			} else if (!useFingerprintAuthentication()) {
-				doEvents(0, null);
-			}
-		}
+		return engine.getCoalesce();
 	}
 
-	private void doEvents(int errorCode, String message)
+	@Kroll.getProperty
+	@Kroll.method
+	public int getCacheTimeout()
 	{
-		KrollDict result = null;
-		if (!eventQueue.isEmpty()) {
-			EVENT e = eventQueue.get(0);
-			if (errorCode != 0) {
-				result = new KrollDict();
-				result.put("success", false);
-				result.put("code", errorCode);
-				result.put("error", message);
-			} else {
-				switch (e.event) {
-					case EVENT_UPDATE:
-						if (!exists()) {
-							result = new KrollDict();
-							result.put("success", false);
-							result.put("code", -1);
-							result.put("error", "could not update, item does not exist.");
-							break;
-						}
-					case EVENT_SAVE:
-						result = doEncrypt(e.value);
-						break;
-					case EVENT_READ:
-						result = doDecrypt();
-						break;
-				}
-			}
-			if (result != null) {
-				fireEvent(e.event, result);
-			}
-			eventQueue.remove(e);
-		}
-		eventBusy = false;
-		processEvents();
+		return engine.getCacheTimeout();
 	}
 
-	@SuppressWarnings("NewApi")
-	private KrollDict initEncrypt()
+	@Kroll.getProperty
+	@Kroll.method
+	public String getNamespace()
 	{
-		try {
-			// initialize encryption cipher
-			cipher.init(Cipher.ENCRYPT_MODE, key);
-
-			// fingerprint authentication
-			if (biometricManager != null && useFingerprintAuthentication()) {
-				final Executor executor = Executors.newSingleThreadExecutor();
-				final BiometricPrompt prompt = new BiometricPrompt(
-					(FragmentActivity) TiApplication.getAppCurrentActivity(), executor, authenticationCallback);
-				prompt.authenticate(biometricPromptInfo, cryptoObject);
-			}
-
-		} catch (Exception e) {
-			KrollDict result = new KrollDict();
-			result.put("identifier", identifier);
-			result.put("success", false);
-			if (e instanceof InvalidKeyException && key == null) {
-				result.put("code", TitaniumIdentityModule.ERROR_PASSCODE_NOT_SET);
-				result.put("error", "device is not secure, could not generate key!");
-			} else if (e instanceof KeyPermanentlyInvalidatedException) {
-				result.put("code", TitaniumIdentityModule.ERROR_KEY_PERMANENTLY_INVALIDATED);
-				result.put("error", "key permantently invalidated!");
-
-				try {
-					if (keyStore != null) {
-						keyStore.deleteEntry(identifier);
-					}
-				} catch (Exception ex) {
-					// do nothing...
-				}
-			} else {
-				result.put("code", -1);
-				result.put("error", e.getMessage());
-			}
-			return result;
-		}
-		return null;
+		return engine.getNamespace();
 	}
 
-	private KrollDict doEncrypt(String value)
+	@Kroll.getProperty
+	@Kroll.method
+	public int getSegmentSize()
 	{
-		KrollDict result = new KrollDict();
-		result.put("identifier", identifier);
-		try {
-			// save encrypted data to private storage
-			FileOutputStream fos = context.openFileOutput(identifier + suffix, Context.MODE_PRIVATE);
+		return engine.getSegmentSize();
+	}
 
-			// write IV
-			fos.write(cipher.getIV());
+	@Kroll.getProperty
+	@Kroll.method
+	public String getMigrationCipher()
+	{
+		return engine.getMigrationCipher();
+	}
 
-			// write encrypted data
-			byte[] data = value.getBytes(StandardCharsets.UTF_8);
-			byte[] encryptedData = cipher.doFinal(data);
-			fos.write(encryptedData);
+	@Kroll.getProperty
+	@Kroll.method
+	private String getCipher()
+	{
+		return engine.getCipher();
+	}
 
-			// close stream
-			if (fos != null) {
-				fos.close();
-			}
+	@Kroll.getProperty
+	@Kroll.method
+	public String getIdentifier()
+	{
+		return engine.getIdentifier();
+	}
 
-			result.put("success", true);
-			result.put("code", 0);
-		} catch (Exception e) {
-			result.put("success", false);
-			result.put("code", -1);
-			result.put("error", e.getMessage());
+	/**
+	 * Obtain the bytes to store from a String, Ti.Blob or Ti.Buffer value.
+	 */
+	protected static byte[] toBytes(Object value)
+	{
+		if (value instanceof TiBlob) {
+			return ((TiBlob) value).getBytes();
+		}
+		if (value instanceof BufferProxy) {
+			BufferProxy buffer = (BufferProxy) value;
+			byte[] bytes = buffer.getBuffer();
+			return bytes.length == buffer.getLength() ? bytes : Arrays.copyOf(bytes, buffer.getLength());
 		}
-		return result;
+		if (value == null) {
+			throw new IllegalArgumentException("value must be a String, Ti.Blob or Ti.Buffer");
+		}
+		return TiConvert.toString(value).getBytes(StandardCharsets.UTF_8);
 	}
 
-	@SuppressWarnings("NewApi")
-	private KrollDict initDecrypt()
+	/**
+	 * Blobs of segmented items are streamed from their source instead of being loaded.
+	 */
+	private static KeychainEngine.Source toSource(final TiBlob blob)
 	{
-		try {
-			// load file from private storage
-			FileInputStream fin = context.openFileInput(identifier + suffix);
-
-			// read IV
-			byte[] iv = new byte[ivSize];
-			fin.read(iv, 0, iv.length);
-
-			// close stream
-			if (fin != null) {
-				fin.close();
-			}
-
-			// initialize decryption cipher
-			cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv));
-
-			// fingerprint authentication
-			if (biometricManager != null && useFingerprintAuthentication()) {
-				final Executor executor = Executors.newSingleThreadExecutor();
-				final BiometricPrompt prompt = new BiometricPrompt(
-					(FragmentActivity) TiApplication.getAppCurrentActivity(), executor, authenticationCallback);
-				prompt.authenticate(biometricPromptInfo, cryptoObject);
+		return new KeychainEngine.Source() {
+			@Override
+			public long getLength()
+			{
+				return blob.getLength();
 			}
 
-		} catch (Exception e) {
-			KrollDict result = new KrollDict();
-			result.put("identifier", identifier);
-			result.put("success", false);
-			result.put("code", -1);
-			if (e instanceof FileNotFoundException) {
-				result.put("error", "keychain data does not exist!");
-			} else if (e instanceof InvalidKeyException && key == null) {
-				result.put("code", TitaniumIdentityModule.ERROR_PASSCODE_NOT_SET);
-				result.put("error", "device is not secure, could not generate key!");
-			} else if (e instanceof KeyPermanentlyInvalidatedException) {
-				result.put("code", TitaniumIdentityModule.ERROR_KEY_PERMANENTLY_INVALIDATED);
-				result.put("error", "key permantently invalidated!");
-
-				try {
-					if (keyStore != null) {
-						keyStore.deleteEntry(identifier);
-					}
-				} catch (Exception ex) {
-					// do nothing...
-				}
-			} else {
-				result.put("error", e.getMessage());
+			@Override
+			public InputStream open() throws IOException
+			{
+				return blob.getInputStream();
 			}
-			return result;
-		}
-		return null;
+		};
 	}
 
-	private KrollDict doDecrypt()
+	/**
+	 * Drop all queued events, the event currently processed still completes.
+	 */
+	public void resetEvents()
 	{
-		KrollDict result = new KrollDict();
-		result.put("identifier", identifier);
-		try {
-			// load file from private storage
-			FileInputStream fin = context.openFileInput(identifier + suffix);
-			fin.skip(ivSize);
-
-			// read decrypted data
-			BufferedInputStream bis = new BufferedInputStream(fin);
-			CipherInputStream cis = new CipherInputStream(bis, cipher);
-			ByteArrayOutputStream baos = new ByteArrayOutputStream();
-			byte[] buffer = new byte[1024];
-			int length = 0;
-			String decrypted = "";
-
-			// since we only encrypt strings, this is acceptable
-			while ((length = cis.read(buffer)) != -1) {
-
-				// obtain decrypted string from buffer
-				baos.write(buffer, 0, length);
-			}
-			decrypted = new String(baos.toByteArray(), StandardCharsets.UTF_8).replace("\u0000+$", "");
+		engine.resetEvents();
+	}
 
-			// close stream
-			if (baos != null) {
-				baos.close();
-			}
-			if (cis != null) {
-				cis.close();
-			}
-			if (bis != null) {
-				bis.close();
-			}
-			if (fin != null) {
-				fin.close();
-			}
+	/**
+	 * Number of queued events and how long they waited before being processed.
+	 */
+	@Kroll.method
+	public KrollDict getQueueStatistics()
+	{
+		return new KrollDict(engine.getQueueStatistics());
+	}
 
-			result.put("success", true);
-			result.put("code", 0);
-			result.put("value", decrypted);
-		} catch (Exception e) {
-			result.put("success", false);
-			result.put("code", -1);
-			if (e instanceof FileNotFoundException) {
-				result.put("error", "keychain data does not exist!");
-			} else {
-				result.put("error", e.getMessage());
+	/**
+	 * Queue an operation whose own result resolves the returned promise. The result is passed
+	 * to the callback if there is one, otherwise it is fired as event as before.
+	 */
+	private KrollPromise<KrollDict> submit(final String event, final byte[] value, final KeychainEngine.Source source,
+										   final int output, final KrollFunction callback)
+	{
+		return KrollPromise.create(new KrollPromise.OnExecuteCallback<KrollDict>() {
+			@Override
+			public void onExecute(final KrollPromise<KrollDict> promise)
+			{
+				engine.submit(event, value, source, output, new KeychainEngine.Completion() {
+					@Override
+					public void onComplete(Map<String, Object> result)
+					{
+						final KrollDict dict = toKrollDict(result);
+						if (callback != null) {
+							callback.callAsync(krollObject, new Object[] { dict });
+						} else {
+							fireEvent(event, dict);
+						}
+						promise.resolve(dict);
+					}
+				});
 			}
-		}
-		return result;
+		});
 	}
 
-	private KrollDict doReset()
+	private KrollPromise<KrollDict> write(String event, Object value, KrollFunction callback)
 	{
-		KrollDict result = new KrollDict();
-		boolean deleted = false;
-
-		// delete file from private storage
-		File file = context.getFileStreamPath(identifier + suffix);
-		if (file != null && file.exists()) {
-			deleted = context.deleteFile(identifier + suffix);
-
-			// remove key from Android key store
-			/*if (deleted) {
-				try {
-					keyStore.deleteEntry(identifier);
-				} catch (Exception e) {
-					deleted = false;
-					result.put("error", "could not remove key");
-				}
-			} else {*/
-			if (!deleted) {
-				result.put("error", "could not delete data");
-			}
+		if (engine.getSegmentSize() > 0 && value instanceof TiBlob) {
+			return submit(event, null, toSource((TiBlob) value), KeychainEngine.OUTPUT_STRING, callback);
 		}
+		return submit(event, toBytes(value), null, KeychainEngine.OUTPUT_STRING, callback);
+	}
 
-		result.put("success", deleted);
-		result.put("code", deleted ? 0 : -1);
-		return result;
+	@Kroll.method
+	public KrollPromise<KrollDict> save(Object value, @Kroll.argument(optional = true) KrollFunction callback)
+	{
+		return write(EVENT_SAVE, value, callback);
 	}
 
-	private boolean exists()
+	/**
+	 * Load the data and initialize the cipher of the next read ahead of time.
+	 */
+	@Kroll.method
+	public KrollPromise<KrollDict> prepare(@Kroll.argument(optional = true) KrollFunction callback)
 	{
-		File file = context.getFileStreamPath(identifier + suffix);
-		return file != null && file.exists();
+		return submit(EVENT_PREPARE, null, null, KeychainEngine.OUTPUT_STRING, callback);
 	}
 
-	public void resetEvents()
+	@Kroll.method
+	public KrollPromise<KrollDict> read(@Kroll.argument(optional = true) KrollFunction callback)
 	{
-		eventQueue.clear();
-		eventBusy = false;
+		return submit(EVENT_READ, null, null, KeychainEngine.OUTPUT_STRING, callback);
 	}
 
 	@Kroll.method
-	public void save(String value)
+	public KrollPromise<KrollDict> readBinary(@Kroll.argument(optional = true) KrollFunction callback)
 	{
-		eventQueue.add(new EVENT(EVENT_SAVE, value));
-		processEvents();
+		return submit(EVENT_READ, null, null, KeychainEngine.OUTPUT_BLOB, callback);
 	}
 
 	@Kroll.method
-	public void read()
+	public KrollPromise<KrollDict> readChunks(@Kroll.argument(optional = true) KrollFunction callback)
 	{
-		eventQueue.add(new EVENT(EVENT_READ));
-		processEvents();
+		return submit(EVENT_READ, null, null, KeychainEngine.OUTPUT_CHUNKS, callback);
 	}
 
 	@Kroll.method
-	public void update(String value)
+	public KrollPromise<KrollDict> update(Object value, @Kroll.argument(optional = true) KrollFunction callback)
 	{
-		eventQueue.add(new EVENT(EVENT_UPDATE, value));
-		processEvents();
+		return write(EVENT_UPDATE, value, callback);
 	}
 
 	@Kroll.method
-	public void reset()
+	public KrollPromise<KrollDict> reset(@Kroll.argument(optional = true) KrollFunction callback)
 	{
-		eventQueue.add(new EVENT(EVENT_RESET));
-		processEvents();
+		return submit(EVENT_RESET, null, null, KeychainEngine.OUTPUT_STRING, callback);
 	}
 
 	@Kroll.method
@@ -530,72 +376,77 @@ public class KeychainItemProxy extends KrollProxy
 	{
 		if (callback instanceof KrollFunction) {
 			KrollDict result = new KrollDict();
-			result.put("exists", exists());
+			result.put("exists", engine.exists());
 			((KrollFunction) callback).callAsync(krollObject, new Object[] { result });
 		}
 	}
 
 	@Override
-	@SuppressWarnings("NewApi")
 	public void handleCreationDict(KrollDict dict)
 	{
 		super.handleCreationDict(dict);
 
 		if (dict.containsKey(PROPERTY_CIPHER)) {
-			String[] cipher = dict.getString(PROPERTY_CIPHER).split("/");
-			if (cipher.length == 3) {
-				algorithm = cipher[0];
-				blockMode = cipher[1];
-				padding = cipher[2];
-
-				// set IV size
-				ivSize = blockMode == KeyProperties.BLOCK_MODE_GCM ? 12 : 16;
-			}
+			engine.setCipher(dict.getString(PROPERTY_CIPHER));
+		}
+		if (dict.containsKey(PROPERTY_MIGRATION_CIPHER)) {
+			engine.setMigrationCipher(dict.getString(PROPERTY_MIGRATION_CIPHER));
 		}
 		if (dict.containsKey(PROPERTY_ACCESSIBILITY_MODE)) {
 			accessibilityMode = dict.getInt(PROPERTY_ACCESSIBILITY_MODE);
 		}
 		if (dict.containsKey(PROPERTY_ACCESS_CONTROL_MODE)) {
-			accessControlMode = dict.getInt(PROPERTY_ACCESS_CONTROL_MODE);
+			engine.setAccessControlMode(dict.getInt(PROPERTY_ACCESS_CONTROL_MODE));
+		}
+		if (dict.containsKey(PROPERTY_AUTHENTICATION_VALIDITY)) {
+			engine.setAuthenticationValidity(dict.getInt(PROPERTY_AUTHENTICATION_VALIDITY));
+		}
+		if (dict.containsKey(PROPERTY_DURABILITY)) {
+			engine.setDurability(dict.getInt(PROPERTY_DURABILITY));
+		}
+		if (dict.containsKey(PROPERTY_COALESCE)) {
+			engine.setCoalesce(dict.optBoolean(PROPERTY_COALESCE, false));
+		}
+		if (dict.containsKey(PROPERTY_CACHE_TIMEOUT)) {
+			engine.setCacheTimeout(dict.getInt(PROPERTY_CACHE_TIMEOUT));
+		}
+		if (dict.containsKey(PROPERTY_SEGMENT_SIZE)) {
+			engine.setSegmentSize(dict.getInt(PROPERTY_SEGMENT_SIZE));
+		}
+		if (dict.containsKey(PROPERTY_NAMESPACE)) {
+			engine.setNamespace(dict.getString(PROPERTY_NAMESPACE));
+		}
+		if (dict.containsKey(PROPERTY_STORAGE) && dict.getInt(PROPERTY_STORAGE) == STORAGE_VAULT) {
+			try {
+				engine.setStorage(VaultKeychainStorage.getInstance(context.getFilesDir(), new Executor() {
+					@Override
+					public void execute(Runnable runnable)
+					{
+						IdentityExecutor.get().execute(runnable);
+					}
+				}));
+				storageMode = STORAGE_VAULT;
+			} catch (IOException e) {
+				Log.e(TAG, "could not open vault, using file storage: " + e.getMessage());
+			}
 		}
 		if (dict.containsKey(PROPERTY_IDENTIFIER)) {
-			identifier = dict.getString(PROPERTY_IDENTIFIER);
-			if (!identifier.isEmpty()) {
-				try {
-					if (!keyStore.containsAlias(identifier)) {
-						KeyGenerator generator = KeyGenerator.getInstance(algorithm, "AndroidKeyStore");
-						KeyGenParameterSpec.Builder spec =
-							new KeyGenParameterSpec
-								.Builder(identifier, KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
-								.setBlockModes(blockMode)
-								.setEncryptionPaddings(padding);
-
-						if ((accessControlMode & (ACCESS_CONTROL_TOUCH_ID_ANY | ACCESS_CONTROL_TOUCH_ID_CURRENT_SET))
-							!= 0) {
-							spec.setUserAuthenticationRequired(true);
-						}
-						if ((accessControlMode & ACCESS_CONTROL_TOUCH_ID_CURRENT_SET) != 0
-							&& Build.VERSION.SDK_INT >= 24) {
-							spec.setInvalidatedByBiometricEnrollment(true);
-						}
+			engine.setIdentifier(dict.getString(PROPERTY_IDENTIFIER));
+			if (!engine.getIdentifier().isEmpty()) {
 
-						generator.init(spec.build());
-						key = generator.generateKey();
-					} else {
-						key = (SecretKey) keyStore.getKey(identifier, null);
-					}
-					if ((accessControlMode & (ACCESS_CONTROL_USER_PRESENCE | ACCESS_CONTROL_DEVICE_PASSCODE)) != 0
-						&& !keyguardManager.isDeviceSecure()) {
-						key = null;
-						Log.e(TAG, "device is not secure, could not generate key!");
-					}
-					cipher = Cipher.getInstance(getCipher());
-					if (biometricManager != null) {
-						cryptoObject = new BiometricPrompt.CryptoObject(cipher);
+				// generating a key can take a while, queued operations wait for it
+				engine.holdEvents();
+				IdentityExecutor.get().execute(new Runnable() {
+					@Override
+					public void run()
+					{
+						try {
+							engine.provisionKey();
+						} catch (Exception e) {
+							Log.e(TAG, e.toString());
+						}
 					}
-				} catch (Exception e) {
-					Log.e(TAG, e.toString());
-				}
+				});
 			}
 		}
 	}
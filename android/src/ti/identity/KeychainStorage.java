@@ -0,0 +1,87 @@
+/**
+ * Axway Appcelerator Titanium - ti.identity
+ * Copyright (c) 2017 by Axway. All Rights Reserved.
+ * Licensed under the terms of the Apache Public License
+ * Please see the LICENSE included with this distribution for details.
+ */
+package ti.identity;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Storage backend holding the encrypted data of keychain items.
+ *
+ * Implementations must be safe to use from multiple threads.
+ */
+public interface KeychainStorage
+{
+	/**
+	 * Source of data that is written in pieces, so it never has to be held in memory at once.
+	 */
+	interface Producer
+	{
+		/**
+		 * Obtain the next piece of data, or null once all data has been produced.
+		 * The returned buffer may be reused by the following call.
+		 */
+		ByteBuffer next() throws IOException;
+	}
+
+	/**
+	 * Data written by {@link #stage} that does not replace the item's data until committed.
+	 */
+	interface Staged
+	{
+		/**
+		 * Flush the data to the storage device. May be called after the commit,
+		 * in which case it flushes the committed data.
+		 */
+		void sync() throws IOException;
+
+		/**
+		 * Atomically replace the item's data with the staged data.
+		 */
+		void commit() throws IOException;
+
+		/**
+		 * Discard the staged data, the item keeps its previous data.
+		 */
+		void abort();
+	}
+
+	/**
+	 * Read the stored data of an item. The returned buffer is positioned at the start of
+	 * the data and may be memory mapped, so it must not be retained.
+	 *
+	 * @throws java.io.FileNotFoundException if the item does not exist
+	 */
+	ByteBuffer read(String identifier) throws IOException;
+
+	/**
+	 * Write new data of an item from the pieces of a producer, which must produce exactly
+	 * length bytes. The data replaces the stored data once it is committed.
+	 *
+	 * @see KeychainWriter
+	 */
+	Staged stage(String identifier, long length, Producer producer) throws IOException;
+
+	boolean exists(String identifier);
+
+	/**
+	 * Whether one sync flushes the staged data of all concurrent writes, so grouped writes
+	 * can share it. Otherwise grouped writes are written like strict ones.
+	 */
+	boolean isSyncShared();
+
+	/**
+	 * Identifiers of all stored items, this scans the storage.
+	 */
+	List<String> list();
+
+	/**
+	 * Remove an item, returns false if it could not be removed.
+	 */
+	boolean delete(String identifier);
+}
@@ -0,0 +1,222 @@
+/**
+ * Axway Appcelerator Titanium - ti.identity
+ * Copyright (c) 2017 by Axway. All Rights Reserved.
+ * Licensed under the terms of the Apache Public License
+ * Please see the LICENSE included with this distribution for details.
+ */
+package ti.identity;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes keychain data to a storage backend with one of three durability modes.
+ *
+ * Strict writes flush the staged data before it atomically replaces the previous data.
+ * Grouped writes do the same, but concurrent writes arriving within GROUP_WINDOW are
+ * flushed together by the first of them, so the vault is flushed once per group. Storage
+ * flushing every item on its own gains nothing from waiting, so it is written strictly.
+ * Relaxed writes replace the data right away and flush it in the background.
+ */
+public class KeychainWriter
+{
+	public static final int DURABILITY_STRICT = 0;
+	public static final int DURABILITY_GROUPED = 1;
+	public static final int DURABILITY_RELAXED = 2;
+
+	private static final String[] NAMES = { "strict", "grouped", "relaxed" };
+	private static final long GROUP_WINDOW = TimeUnit.MILLISECONDS.toNanos(2);
+
+	private static final AtomicLong[] writes = counters();
+	private static final AtomicLong[] latency = counters();
+	private static final AtomicLong[] maximumLatency = counters();
+	private static final AtomicLong groups = new AtomicLong();
+
+	private static final Object groupLock = new Object();
+	private static Group openGroup;
+
+	private static class Group
+	{
+		final List<KeychainStorage.Staged> members = new ArrayList<KeychainStorage.Staged>();
+		final List<IOException> errors = new ArrayList<IOException>();
+		boolean done;
+	}
+
+	private static AtomicLong[] counters()
+	{
+		final AtomicLong[] counters = new AtomicLong[NAMES.length];
+		for (int i = 0; i < counters.length; i++) {
+			counters[i] = new AtomicLong();
+		}
+		return counters;
+	}
+
+	public static boolean isValid(int durability)
+	{
+		return durability >= DURABILITY_STRICT && durability <= DURABILITY_RELAXED;
+	}
+
+	public static void write(KeychainStorage storage, String identifier, final ByteBuffer data, int durability)
+		throws IOException
+	{
+		write(storage, identifier, data.remaining(), new KeychainStorage.Producer() {
+			private boolean produced;
+
+			@Override
+			public ByteBuffer next()
+			{
+				if (produced) {
+					return null;
+				}
+				produced = true;
+				return data;
+			}
+		}, durability);
+	}
+
+	public static void write(KeychainStorage storage, String identifier, long length,
+							 KeychainStorage.Producer producer, int durability) throws IOException
+	{
+		final long start = System.nanoTime();
+		if (durability == DURABILITY_GROUPED && !storage.isSyncShared()) {
+			durability = DURABILITY_STRICT;
+		}
+		final KeychainStorage.Staged staged = storage.stage(identifier, length, producer);
+		try {
+			switch (durability) {
+				case DURABILITY_GROUPED:
+					syncGrouped(staged);
+					break;
+				case DURABILITY_RELAXED:
+					break;
+				default:
+					durability = DURABILITY_STRICT;
+					staged.sync();
+			}
+			staged.commit();
+		} catch (IOException e) {
+			staged.abort();
+			throw e;
+		}
+		if (durability == DURABILITY_RELAXED) {
+			syncLater(staged);
+		}
+		record(durability, System.nanoTime() - start);
+	}
+
+	private static void syncLater(final KeychainStorage.Staged staged)
+	{
+		IdentityExecutor.get().execute(new Runnable() {
+			@Override
+			public void run()
+			{
+				try {
+					staged.sync();
+				} catch (IOException e) {
+					// the data stays with the operating system, which flushes it eventually
+				}
+			}
+		});
+	}
+
+	/**
+	 * Join the open group or open a new one. The writer opening a group waits for others
+	 * to join, flushes every member and then wakes them up.
+	 */
+	private static void syncGrouped(KeychainStorage.Staged staged) throws IOException
+	{
+		final Group group;
+		final int member;
+		final boolean leader;
+		synchronized (groupLock)
+		{
+			leader = openGroup == null;
+			if (leader) {
+				openGroup = new Group();
+			}
+			group = openGroup;
+			member = group.members.size();
+			group.members.add(staged);
+			group.errors.add(null);
+		}
+
+		if (leader) {
+			LockSupport.parkNanos(GROUP_WINDOW);
+			synchronized (groupLock)
+			{
+				openGroup = null;
+			}
+			groups.incrementAndGet();
+
+			// the group is closed, members are only modified by this thread from here on
+			for (int i = 0; i < group.members.size(); i++) {
+				try {
+					group.members.get(i).sync();
+				} catch (IOException e) {
+					group.errors.set(i, e);
+				}
+			}
+			synchronized (group)
+			{
+				group.done = true;
+				group.notifyAll();
+			}
+		} else {
+			synchronized (group)
+			{
+				while (!group.done) {
+					try {
+						group.wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException("interrupted while waiting for group commit");
+					}
+				}
+			}
+		}
+
+		final IOException error = group.errors.get(member);
+		if (error != null) {
+			throw error;
+		}
+	}
+
+	private static void record(int durability, long nanos)
+	{
+		writes[durability].incrementAndGet();
+		latency[durability].addAndGet(nanos);
+		final AtomicLong maximum = maximumLatency[durability];
+		long current = maximum.get();
+		while (nanos > current && !maximum.compareAndSet(current, nanos)) {
+			current = maximum.get();
+		}
+	}
+
+	/**
+	 * Write counts and latencies in milliseconds per durability mode.
+	 */
+	public static Map<String, Object> getStatistics()
+	{
+		final Map<String, Object> statistics = new HashMap<String, Object>();
+		for (int i = 0; i < NAMES.length; i++) {
+			final long count = writes[i].get();
+			final Map<String, Object> mode = new HashMap<String, Object>();
+			mode.put("writes", count);
+			mode.put("averageLatency", count > 0 ? latency[i].get() / 1e6 / count : 0);
+			mode.put("maximumLatency", maximumLatency[i].get() / 1e6);
+			if (i == DURABILITY_GROUPED) {
+				mode.put("groups", groups.get());
+			}
+			statistics.put(NAMES[i], mode);
+		}
+		return statistics;
+	}
+}
@@ -0,0 +1,163 @@
+/**
+ * Axway Appcelerator Titanium - ti.identity
+ * Copyright (c) 2017 by Axway. All Rights Reserved.
+ * Licensed under the terms of the Apache Public License
+ * Please see the LICENSE included with this distribution for details.
+ */
+package ti.identity;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histograms of the stages of keychain operations, per item and for all items.
+ *
+ * Each stage has a histogram of power of two buckets of nanoseconds, a sum and a maximum,
+ * all held in preallocated atomic arrays, so recording neither locks nor allocates.
+ * Percentiles are reported as the upper bound of their bucket.
+ */
+public class LatencyMetrics
+{
+	public static final int STAGE_KEY_STORE = 0;
+	public static final int STAGE_KEY_GENERATION = 1;
+	public static final int STAGE_CIPHER_INIT = 2;
+	public static final int STAGE_AUTHENTICATION = 3;
+	public static final int STAGE_STORAGE_READ = 4;
+	public static final int STAGE_STORAGE_WRITE = 5;
+	public static final int STAGE_QUEUE_WAIT = 6;
+
+	private static final String[] NAMES = { "keyStore", "keyGeneration", "cipherInit", "authentication",
+											"storageRead", "storageWrite", "queueWait" };
+	private static final int BUCKETS = 64;
+
+	private static final LatencyMetrics total = new LatencyMetrics();
+	private static final ConcurrentHashMap<String, LatencyMetrics> items =
+		new ConcurrentHashMap<String, LatencyMetrics>();
+
+	private final AtomicLongArray histogram = new AtomicLongArray(NAMES.length * BUCKETS);
+	private final AtomicLongArray counts = new AtomicLongArray(NAMES.length);
+	private final AtomicLongArray sums = new AtomicLongArray(NAMES.length);
+	private final AtomicLongArray maxima = new AtomicLongArray(NAMES.length);
+
+	/**
+	 * Metrics of an identifier, shared by all items of that identifier.
+	 */
+	public static LatencyMetrics forItem(String identifier)
+	{
+		final LatencyMetrics metrics = new LatencyMetrics();
+		final LatencyMetrics existing = items.putIfAbsent(identifier, metrics);
+		return existing != null ? existing : metrics;
+	}
+
+	/**
+	 * Record a stage that does not belong to an item, like loading the key store.
+	 */
+	public static void recordTotal(int stage, long nanos)
+	{
+		total.add(stage, nanos);
+	}
+
+	/**
+	 * Record the duration of a stage of this item, which is included in the totals.
+	 */
+	public void record(int stage, long nanos)
+	{
+		add(stage, nanos);
+		total.add(stage, nanos);
+	}
+
+	private void add(int stage, long nanos)
+	{
+		if (nanos < 0) {
+			nanos = 0;
+		}
+
+		// bucket i holds durations below 2^i nanoseconds
+		histogram.incrementAndGet(stage * BUCKETS + BUCKETS - Long.numberOfLeadingZeros(nanos));
+		counts.incrementAndGet(stage);
+		sums.addAndGet(stage, nanos);
+		long current = maxima.get(stage);
+		while (nanos > current && !maxima.compareAndSet(stage, current, nanos)) {
+			current = maxima.get(stage);
+		}
+	}
+
+	private void clear()
+	{
+		for (int i = 0; i < histogram.length(); i++) {
+			histogram.set(i, 0);
+		}
+		for (int i = 0; i < NAMES.length; i++) {
+			counts.set(i, 0);
+			sums.set(i, 0);
+			maxima.set(i, 0);
+		}
+	}
+
+	/**
+	 * Upper bound in milliseconds of the bucket containing the given fraction of a stage's samples.
+	 */
+	private double getPercentile(int stage, long count, double fraction)
+	{
+		final long rank = (long) Math.ceil(count * fraction);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += histogram.get(stage * BUCKETS + i);
+			if (seen >= rank) {
+				return Math.min(i == 0 ? 0 : 1L << Math.min(i, 62), maxima.get(stage)) / 1e6;
+			}
+		}
+		return maxima.get(stage) / 1e6;
+	}
+
+	/**
+	 * Count and latencies in milliseconds of each stage that was recorded.
+	 */
+	public Map<String, Object> getStatistics()
+	{
+		final Map<String, Object> statistics = new HashMap<String, Object>();
+		for (int i = 0; i < NAMES.length; i++) {
+			final long count = counts.get(i);
+			if (count == 0) {
+				continue;
+			}
+			final Map<String, Object> stage = new HashMap<String, Object>();
+			stage.put("count", count);
+			stage.put("averageLatency", sums.get(i) / 1e6 / count);
+			stage.put("maximumLatency", maxima.get(i) / 1e6);
+			stage.put("p50", getPercentile(i, count, 0.5));
+			stage.put("p90", getPercentile(i, count, 0.9));
+			stage.put("p99", getPercentile(i, count, 0.99));
+			statistics.put(NAMES[i], stage);
+		}
+		return statistics;
+	}
+
+	/**
+	 * Statistics of all items together and of each identifier.
+	 */
+	public static Map<String, Object> getAllStatistics()
+	{
+		final Map<String, Object> itemStatistics = new HashMap<String, Object>();
+		for (Map.Entry<String, LatencyMetrics> entry : items.entrySet()) {
+			itemStatistics.put(entry.getKey(), entry.getValue().getStatistics());
+		}
+		final Map<String, Object> statistics = new HashMap<String, Object>();
+		statistics.put("total", total.getStatistics());
+		statistics.put("items", itemStatistics);
+		return statistics;
+	}
+
+	/**
+	 * Start over, samples recorded concurrently with a reset may be lost or partly kept.
+	 */
+	public static void reset()
+	{
+		total.clear();
+		for (LatencyMetrics metrics : items.values()) {
+			metrics.clear();
+		}
+	}
+}
@@ -0,0 +1,239 @@
+/**
+ * Axway Appcelerator Titanium - ti.identity
+ * Copyright (c) 2017 by Axway. All Rights Reserved.
+ * Licensed under the terms of the Apache Public License
+ * Please see the LICENSE included with this distribution for details.
+ */
+package ti.identity;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Lock-free queue of the operations of one keychain item.
+ *
+ * Any thread may add operations, but only the thread that acquired the queue processes
+ * them, one at a time and in order, until it completes the last one. Queues of
+ * different items are independent, so their operations run in parallel.
+ *
+ * Plain Java on purpose, so it can be benchmarked on a JVM.
+ */
+public class OperationQueue<T>
+{
+	private static final AtomicLong totalOperations = new AtomicLong();
+	private static final AtomicLong totalWaitTime = new AtomicLong();
+	private static final AtomicLong totalMaximumWaitTime = new AtomicLong();
+	private static final AtomicInteger totalDepth = new AtomicInteger();
+	private static final AtomicLong totalCoalesced = new AtomicLong();
+
+	/**
+	 * Selects operations for {@link #takeFollowing}.
+	 */
+	public interface Matcher<T>
+	{
+		boolean matches(T operation);
+	}
+
+	private static class Node<T>
+	{
+		final T operation;
+		final long queued = System.nanoTime();
+
+		Node(T operation)
+		{
+			this.operation = operation;
+		}
+	}
+
+	private final ConcurrentLinkedQueue<Node<T>> queue = new ConcurrentLinkedQueue<Node<T>>();
+	private final AtomicBoolean busy = new AtomicBoolean();
+	private final AtomicReference<Node<T>> head = new AtomicReference<Node<T>>();
+	private final AtomicInteger depth = new AtomicInteger();
+	private final AtomicLong operations = new AtomicLong();
+	private final AtomicLong waitTime = new AtomicLong();
+	private final AtomicLong maximumWaitTime = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private long headWaitTime;
+
+	public void add(T operation)
+	{
+		queue.offer(new Node<T>(operation));
+		depth.incrementAndGet();
+		totalDepth.incrementAndGet();
+	}
+
+	/**
+	 * Take ownership of the queue if it is idle and not empty, returns the operation
+	 * to process or null if another thread owns the queue or there is nothing to do.
+	 * The owner keeps the queue until {@link #next} finds it empty.
+	 */
+	public T acquire()
+	{
+		while (!queue.isEmpty() && busy.compareAndSet(false, true)) {
+			final T operation = head();
+			if (operation != null) {
+				return operation;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Called by the owner once it processed an operation, returns the next operation
+	 * or null after giving up ownership of the empty queue.
+	 */
+	public T next()
+	{
+		final T operation = head();
+		return operation != null ? operation : acquire();
+	}
+
+	private T head()
+	{
+		final Node<T> node = queue.peek();
+		if (node == null) {
+			busy.set(false);
+			return null;
+		}
+		head.set(node);
+		final long wait = System.nanoTime() - node.queued;
+		headWaitTime = wait;
+		record(operations, waitTime, maximumWaitTime, wait);
+		record(totalOperations, totalWaitTime, totalMaximumWaitTime, wait);
+		return node.operation;
+	}
+
+	/**
+	 * Nanoseconds the current operation waited before the owner acquired it. Only the owner may call this.
+	 */
+	public long getWaitTime()
+	{
+		return headWaitTime;
+	}
+
+	/**
+	 * The operation currently processed by the owner, or null.
+	 */
+	public T current()
+	{
+		final Node<T> node = head.get();
+		return node != null ? node.operation : null;
+	}
+
+	/**
+	 * Remove a processed operation, the owner keeps the queue until it calls {@link #next}.
+	 * Returns false if the operation is not the one currently processed.
+	 */
+	public boolean finish(T operation)
+	{
+		final Node<T> node = head.get();
+		if (node == null || node.operation != operation || !head.compareAndSet(node, null)) {
+			return false;
+		}
+		if (queue.remove(node)) {
+			depth.decrementAndGet();
+			totalDepth.decrementAndGet();
+		}
+		return true;
+	}
+
+	/**
+	 * Remove the operations directly following the current one for as long as they match,
+	 * so the owner can process them together with the current one. Only the owner may call this.
+	 */
+	public List<T> takeFollowing(Matcher<T> matcher)
+	{
+		final List<T> taken = new ArrayList<T>();
+		final Node<T> current = head.get();
+		boolean following = false;
+		for (Node<T> node : queue) {
+			if (!following) {
+				following = node == current;
+				continue;
+			}
+			if (!matcher.matches(node.operation) || !queue.remove(node)) {
+				break;
+			}
+			taken.add(node.operation);
+			depth.decrementAndGet();
+			totalDepth.decrementAndGet();
+
+			final long wait = System.nanoTime() - node.queued;
+			record(operations, waitTime, maximumWaitTime, wait);
+			record(totalOperations, totalWaitTime, totalMaximumWaitTime, wait);
+		}
+		coalesced.addAndGet(taken.size());
+		totalCoalesced.addAndGet(taken.size());
+		return taken;
+	}
+
+	/**
+	 * Remove all operations waiting to be processed. The operation currently processed
+	 * stays with its owner.
+	 */
+	public List<T> clear()
+	{
+		final List<T> removed = new ArrayList<T>();
+		// the first operation is the current one while the queue is owned
+		final Node<T> current = busy.get() ? queue.peek() : null;
+		for (Node<T> node : queue) {
+			if (node != current && queue.remove(node)) {
+				removed.add(node.operation);
+				depth.decrementAndGet();
+				totalDepth.decrementAndGet();
+			}
+		}
+		return removed;
+	}
+
+	public int size()
+	{
+		return depth.get();
+	}
+
+	private static void record(AtomicLong count, AtomicLong total, AtomicLong maximum, long wait)
+	{
+		count.incrementAndGet();
+		total.addAndGet(wait);
+		long current = maximum.get();
+		while (wait > current && !maximum.compareAndSet(current, wait)) {
+			current = maximum.get();
+		}
+	}
+
+	private static Map<String, Object> getStatistics(int depth, long operations, long coalesced, long waitTime,
+													 long maximumWaitTime)
+	{
+		Map<String, Object> statistics = new HashMap<String, Object>();
+		statistics.put("depth", depth);
+		statistics.put("operations", operations);
+		statistics.put("coalesced", coalesced);
+		statistics.put("averageWaitTime", operations > 0 ? waitTime / 1e6 / operations : 0);
+		statistics.put("maximumWaitTime", maximumWaitTime / 1e6);
+		return statistics;
+	}
+
+	/**
+	 * Depth and wait times in milliseconds of this queue.
+	 */
+	public Map<String, Object> getStatistics()
+	{
+		return getStatistics(depth.get(), operations.get(), coalesced.get(), waitTime.get(), maximumWaitTime.get());
+	}
+
+	/**
+	 * Depth and wait times in milliseconds of all queues.
+	 */
+	public static Map<String, Object> getTotalStatistics()
+	{
+		return getStatistics(totalDepth.get(), totalOperations.get(), totalCoalesced.get(), totalWaitTime.get(),
+							 totalMaximumWaitTime.get());
+	}
+}
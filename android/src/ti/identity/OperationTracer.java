@@ -0,0 +1,207 @@
+/**
+ * Axway Appcelerator Titanium - ti.identity
+ * Copyright (c) 2017 by Axway. All Rights Reserved.
+ * Licensed under the terms of the Apache Public License
+ * Please see the LICENSE included with this distribution for details.
+ */
+package ti.identity;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Opt-in recorder of the spans of keychain operations, exported as Chrome trace events.
+ *
+ * Spans are kept in a ring buffer of preallocated slots, so the oldest spans are overwritten
+ * once it is full. Recording claims a slot with a single atomic increment and stores references
+ * only. While tracing is disabled, begin returns 0 and end returns right away.
+ */
+public class OperationTracer
+{
+	public static final String STAGE_QUEUE = "queue";
+	public static final String STAGE_INIT = "init";
+	public static final String STAGE_AUTHENTICATION = "authentication";
+	public static final String STAGE_PERFORM = "perform";
+	public static final String STAGE_OPERATION = "operation";
+	public static final String STAGE_MIGRATE = "migrate";
+
+	private static volatile Ring ring;
+
+	private static class Ring
+	{
+		final long origin = System.nanoTime();
+		final int capacity;
+		final AtomicLong next = new AtomicLong();
+
+		// sequence of the span in a slot, -1 while the slot is written
+		final AtomicLongArray sequences;
+		final String[] stages;
+		final String[] identifiers;
+		final String[] events;
+		final long[] starts;
+		final long[] durations;
+		final long[] threadIds;
+		final String[] threadNames;
+
+		Ring(int capacity)
+		{
+			this.capacity = capacity;
+			sequences = new AtomicLongArray(capacity);
+			stages = new String[capacity];
+			identifiers = new String[capacity];
+			events = new String[capacity];
+			starts = new long[capacity];
+			durations = new long[capacity];
+			threadIds = new long[capacity];
+			threadNames = new String[capacity];
+			for (int i = 0; i < capacity; i++) {
+				sequences.set(i, -1);
+			}
+		}
+
+		void record(String stage, String identifier, String event, long start, long end)
+		{
+			final long sequence = next.getAndIncrement();
+			final int slot = (int) (sequence % capacity);
+			final Thread thread = Thread.currentThread();
+			sequences.set(slot, -1);
+			stages[slot] = stage;
+			identifiers[slot] = identifier;
+			events[slot] = event;
+			starts[slot] = start;
+			durations[slot] = end - start;
+			threadIds[slot] = thread.getId();
+			threadNames[slot] = thread.getName();
+			sequences.set(slot, sequence);
+		}
+	}
+
+	/**
+	 * Number of spans kept, 0 when tracing is disabled.
+	 */
+	public static int getCapacity()
+	{
+		final Ring current = ring;
+		return current != null ? current.capacity : 0;
+	}
+
+	/**
+	 * Start tracing into an empty buffer of the given number of spans, or stop tracing with 0.
+	 */
+	public static void setCapacity(int capacity)
+	{
+		ring = capacity > 0 ? new Ring(capacity) : null;
+	}
+
+	/**
+	 * Start of a span, or 0 while tracing is disabled.
+	 */
+	public static long begin()
+	{
+		return ring != null ? System.nanoTime() : 0;
+	}
+
+	/**
+	 * Record a span that started at a time obtained from begin.
+	 */
+	public static void end(String stage, String identifier, String event, long start)
+	{
+		final Ring current = ring;
+		if (current != null && start != 0) {
+			current.record(stage, identifier, event, start, System.nanoTime());
+		}
+	}
+
+	/**
+	 * Record a span that ended now and lasted the given nanoseconds.
+	 */
+	public static void span(String stage, String identifier, String event, long nanos)
+	{
+		final Ring current = ring;
+		if (current != null) {
+			final long end = System.nanoTime();
+			current.record(stage, identifier, event, end - nanos, end);
+		}
+	}
+
+	/**
+	 * The recorded spans in the Chrome trace event format, which Perfetto and chrome://tracing load.
+	 * Spans written while dumping are skipped.
+	 */
+	public static String dump()
+	{
+		final StringBuilder json = new StringBuilder("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+		final Ring current = ring;
+		if (current != null) {
+			final Map<Long, String> threads = new HashMap<Long, String>();
+			final long last = current.next.get();
+			boolean first = true;
+			for (long sequence = Math.max(0, last - current.capacity); sequence < last; sequence++) {
+				final int slot = (int) (sequence % current.capacity);
+				if (current.sequences.get(slot) != sequence) {
+					continue;
+				}
+				final String stage = current.stages[slot];
+				final String identifier = current.identifiers[slot];
+				final String event = current.events[slot];
+				final long start = current.starts[slot];
+				final long duration = current.durations[slot];
+				final long threadId = current.threadIds[slot];
+				final String threadName = current.threadNames[slot];
+				if (current.sequences.get(slot) != sequence) {
+					continue;
+				}
+				threads.put(threadId, threadName);
+
+				if (!first) {
+					json.append(',');
+				}
+				first = false;
+				json.append("{\"name\":");
+				appendString(json, stage);
+				json.append(",\"cat\":\"ti.identity\",\"ph\":\"X\",\"pid\":0,\"tid\":").append(threadId);
+				json.append(",\"ts\":").append((start - current.origin) / 1000.0);
+				json.append(",\"dur\":").append(duration / 1000.0);
+				json.append(",\"args\":{");
+				if (identifier != null) {
+					json.append("\"identifier\":");
+					appendString(json, identifier);
+				}
+				if (event != null) {
+					json.append(identifier != null ? ",\"event\":" : "\"event\":");
+					appendString(json, event);
+				}
+				json.append("}}");
+			}
+			for (Map.Entry<Long, String> thread : threads.entrySet()) {
+				if (!first) {
+					json.append(',');
+				}
+				first = false;
+				json.append("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":0,\"tid\":").append(thread.getKey());
+				json.append(",\"args\":{\"name\":");
+				appendString(json, thread.getValue());
+				json.append("}}");
+			}
+		}
+		return json.append("]}").toString();
+	}
+
+	private static void appendString(StringBuilder json, String value)
+	{
+		json.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			final char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				json.append('\\').append(c);
+			} else if (c < 0x20) {
+				json.append(String.format("\\u%04x", (int) c));
+			} else {
+				json.append(c);
+			}
+		}
+		json.append('"');
+	}
+}
@@ -0,0 +1,148 @@
+/**
+ * Axway Appcelerator Titanium - ti.identity
+ * Copyright (c) 2017 by Axway. All Rights Reserved.
+ * Licensed under the terms of the Apache Public License
+ * Please see the LICENSE included with this distribution for details.
+ */
+package ti.identity;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Process wide cache of decrypted values of items that opted in with a cache timeout.
+ *
+ * Values are kept as byte arrays, so they can be wiped when they expire, are evicted or
+ * invalidated. The least recently used values are evicted once all values together exceed
+ * the maximum size. The module clears the cache when the app is paused or memory runs low.
+ */
+public class PlaintextCache
+{
+	public static final int DEFAULT_MAXIMUM_SIZE = 256 * 1024;
+
+	private static class Entry
+	{
+		final byte[] value;
+		final long expires;
+
+		Entry(byte[] value, long expires)
+		{
+			this.value = value;
+			this.expires = expires;
+		}
+	}
+
+	private static final LinkedHashMap<String, Entry> values = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private static int maximumSize = DEFAULT_MAXIMUM_SIZE;
+	private static int size;
+	private static long hits;
+	private static long misses;
+	private static long evictions;
+	private static long expirations;
+
+	/**
+	 * Obtain a copy of a cached value, or null if it is not cached or expired.
+	 * The caller should wipe the copy once it is done with it.
+	 */
+	public static synchronized byte[] get(String identifier)
+	{
+		final Entry entry = values.get(identifier);
+		if (entry == null) {
+			misses++;
+			return null;
+		}
+		if (System.nanoTime() - entry.expires >= 0) {
+			expirations++;
+			misses++;
+			remove(identifier);
+			return null;
+		}
+		hits++;
+		return Arrays.copyOf(entry.value, entry.value.length);
+	}
+
+	/**
+	 * Cache a copy of a value for the given number of seconds.
+	 */
+	public static synchronized void put(String identifier, byte[] value, int offset, int length, int timeout)
+	{
+		remove(identifier);
+		if (timeout <= 0 || length > maximumSize) {
+			return;
+		}
+
+		values.put(identifier, new Entry(Arrays.copyOfRange(value, offset, offset + length),
+										 System.nanoTime() + timeout * 1000000000L));
+		size += length;
+		trim(maximumSize);
+	}
+
+	public static synchronized void invalidate(String identifier)
+	{
+		remove(identifier);
+	}
+
+	/**
+	 * Wipe and remove all values.
+	 */
+	public static synchronized void clear()
+	{
+		for (Entry entry : values.values()) {
+			Arrays.fill(entry.value, (byte) 0);
+		}
+		values.clear();
+		size = 0;
+	}
+
+	public static synchronized int getMaximumSize()
+	{
+		return maximumSize;
+	}
+
+	public static synchronized void setMaximumSize(int bytes)
+	{
+		maximumSize = Math.max(0, bytes);
+		trim(maximumSize);
+	}
+
+	private static void remove(String identifier)
+	{
+		final Entry entry = values.remove(identifier);
+		if (entry != null) {
+			size -= entry.value.length;
+			Arrays.fill(entry.value, (byte) 0);
+		}
+	}
+
+	/**
+	 * Evict least recently used values until the cache fits into the given size.
+	 */
+	private static void trim(int bytes)
+	{
+		final Iterator<Map.Entry<String, Entry>> iterator = values.entrySet().iterator();
+		while (size > bytes && iterator.hasNext()) {
+			final Entry entry = iterator.next().getValue();
+			iterator.remove();
+			size -= entry.value.length;
+			Arrays.fill(entry.value, (byte) 0);
+			evictions++;
+		}
+	}
+
+	public static synchronized Map<String, Object> getStatistics()
+	{
+		Map<String, Object> statistics = new HashMap<String, Object>();
+		statistics.put("entries", values.size());
+		statistics.put("size", size);
+		statistics.put("maximumSize", maximumSize);
+		statistics.put("hits", hits);
+		statistics.put("misses", misses);
+		statistics.put("hitRate", hits + misses > 0 ? (double) hits / (hits + misses) : 0);
+		statistics.put("evictions", evictions);
+		statistics.put("expirations", expirations);
+		return statistics;
+	}
+}
@@ -0,0 +1,260 @@
+/**
+ * Axway Appcelerator Titanium - ti.identity
+ * Copyright (c) 2017 by Axway. All Rights Reserved.
+ * Licensed under the terms of the Apache Public License
+ * Please see the LICENSE included with this distribution for details.
+ */
+package ti.identity;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encrypts data as a sequence of independently authenticated AES/GCM segments, so values
+ * of any size are processed with memory bounded by the segment size.
+ *
+ * Layout: segment size (4), nonce prefix (7), then every segment's ciphertext followed by
+ * its tag. The nonce of a segment is the prefix, the segment index (4) and a flag marking
+ * the last segment (1), so reordered, dropped or truncated segments fail authentication.
+ */
+public class SegmentedCipher
+{
+	public static final int KEY_SIZE = 32;
+	public static final int TAG_SIZE = 16;
+	public static final int NONCE_PREFIX_SIZE = 7;
+	public static final int HEADER_SIZE = 4 + NONCE_PREFIX_SIZE;
+	public static final int MIN_SEGMENT_SIZE = 1024;
+
+	private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+	private static final SecureRandom random = new SecureRandom();
+
+	private final SecretKeySpec key;
+	private final Cipher cipher;
+
+	/**
+	 * The key is copied, so the caller may wipe it afterwards.
+	 */
+	public SegmentedCipher(byte[] key) throws GeneralSecurityException
+	{
+		this.key = new SecretKeySpec(key, "AES");
+		this.cipher = Cipher.getInstance(TRANSFORMATION);
+	}
+
+	/**
+	 * Create a random key for a new value.
+	 */
+	public static byte[] generateKey()
+	{
+		final byte[] key = new byte[KEY_SIZE];
+		random.nextBytes(key);
+		return key;
+	}
+
+	private static int getSegmentCount(long length, int segmentSize)
+	{
+		return (int) Math.max(1, (length + segmentSize - 1) / segmentSize);
+	}
+
+	/**
+	 * Size of the encrypted form of a value, including the header.
+	 */
+	public static long getEncryptedSize(long length, int segmentSize)
+	{
+		return HEADER_SIZE + length + (long) getSegmentCount(length, segmentSize) * TAG_SIZE;
+	}
+
+	private static byte[] nonce(byte[] prefix, int index, boolean last)
+	{
+		return ByteBuffer.allocate(NONCE_PREFIX_SIZE + 5).put(prefix).putInt(index).put((byte) (last ? 1 : 0)).array();
+	}
+
+	/**
+	 * Encrypt length bytes of a stream. The returned producer yields the prefix first,
+	 * followed by the header and the segments, and closes the stream once done.
+	 */
+	public Encryptor encrypt(InputStream in, long length, int segmentSize, ByteBuffer prefix)
+	{
+		return new Encryptor(in, length, Math.max(MIN_SEGMENT_SIZE, segmentSize), prefix);
+	}
+
+	/**
+	 * Decrypt the remaining bytes of a buffer segment by segment.
+	 */
+	public Decryptor decrypt(ByteBuffer data) throws IOException
+	{
+		return new Decryptor(data);
+	}
+
+	/**
+	 * Yields the encrypted value one segment at a time.
+	 */
+	public class Encryptor implements KeychainStorage.Producer, Closeable
+	{
+		private final InputStream in;
+		private final int segmentSize;
+		private final int segments;
+		private final byte[] noncePrefix = new byte[NONCE_PREFIX_SIZE];
+		private final byte[] plain;
+		private final ByteBuffer output;
+		private ByteBuffer prefix;
+		private long remaining;
+		private int index = -1;
+
+		Encryptor(InputStream in, long length, int segmentSize, ByteBuffer prefix)
+		{
+			this.in = in;
+			this.segmentSize = segmentSize;
+			this.segments = getSegmentCount(length, segmentSize);
+			this.plain = new byte[(int) Math.min(segmentSize, Math.max(length, 1))];
+			this.output = ByteBuffer.allocate(plain.length + TAG_SIZE);
+			this.prefix = prefix;
+			this.remaining = length;
+			random.nextBytes(noncePrefix);
+		}
+
+		@Override
+		public ByteBuffer next() throws IOException
+		{
+			if (prefix != null) {
+				final ByteBuffer buffer = prefix;
+				prefix = null;
+				return buffer;
+			}
+			if (index < 0) {
+				index = 0;
+				final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(segmentSize).put(noncePrefix);
+				header.flip();
+				return header;
+			}
+			if (index >= segments) {
+				close();
+				return null;
+			}
+
+			final int length = (int) Math.min(segmentSize, remaining);
+			boolean done = false;
+			try {
+				int read = 0;
+				while (read < length) {
+					final int count = in.read(plain, read, length - read);
+					if (count < 0) {
+						throw new EOFException("value is shorter than its length");
+					}
+					read += count;
+				}
+				remaining -= length;
+
+				final boolean last = index == segments - 1;
+				cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_SIZE * 8, nonce(noncePrefix, index++, last)));
+				output.clear();
+				output.limit(cipher.doFinal(plain, 0, length, output.array(), 0));
+				done = true;
+			} catch (GeneralSecurityException e) {
+				throw new IOException(e);
+			} finally {
+				Arrays.fill(plain, 0, length, (byte) 0);
+				if (!done) {
+					close();
+				}
+			}
+			return output;
+		}
+
+		/**
+		 * Close the stream and wipe the plaintext, also when the value was not fully produced.
+		 */
+		@Override
+		public void close() throws IOException
+		{
+			Arrays.fill(plain, (byte) 0);
+			in.close();
+		}
+	}
+
+	/**
+	 * Yields the plaintext of one segment at a time.
+	 */
+	public class Decryptor
+	{
+		private final ByteBuffer data;
+		private final int segmentSize;
+		private final int segments;
+		private final long length;
+		private final byte[] noncePrefix = new byte[NONCE_PREFIX_SIZE];
+		private final byte[] encrypted;
+		private final ByteBuffer output;
+		private int index;
+
+		Decryptor(ByteBuffer data) throws IOException
+		{
+			if (data.remaining() < HEADER_SIZE + TAG_SIZE) {
+				throw new IOException("keychain data is corrupt!");
+			}
+			this.segmentSize = data.getInt();
+			if (segmentSize < MIN_SEGMENT_SIZE) {
+				throw new IOException("keychain data is corrupt!");
+			}
+			data.get(noncePrefix);
+			this.data = data;
+
+			// every segment but the last one is full
+			final int fullSegment = segmentSize + TAG_SIZE;
+			final int size = data.remaining();
+			this.segments = Math.max(1, (size + fullSegment - 1) / fullSegment);
+			this.length = size - (long) segments * TAG_SIZE;
+			if (length < 0) {
+				throw new IOException("keychain data is corrupt!");
+			}
+			this.encrypted = new byte[Math.min(fullSegment, size)];
+			this.output = ByteBuffer.allocate(encrypted.length);
+		}
+
+		/**
+		 * Length of the decrypted value.
+		 */
+		public long getLength()
+		{
+			return length;
+		}
+
+		/**
+		 * Decrypt the next segment, or return null once all segments were decrypted.
+		 * The returned buffer is reused by the following call.
+		 */
+		public ByteBuffer next() throws IOException
+		{
+			if (index >= segments) {
+				return null;
+			}
+			final int size = Math.min(segmentSize + TAG_SIZE, data.remaining());
+			data.get(encrypted, 0, size);
+
+			try {
+				final boolean last = index == segments - 1;
+				cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_SIZE * 8, nonce(noncePrefix, index++, last)));
+				output.clear();
+				output.limit(cipher.doFinal(encrypted, 0, size, output.array(), 0));
+			} catch (GeneralSecurityException e) {
+				throw new IOException("keychain data is corrupt!", e);
+			}
+			return output;
+		}
+
+		/**
+		 * Wipe the last decrypted segment.
+		 */
+		public void wipe()
+		{
+			Arrays.fill(output.array(), (byte) 0);
+		}
+	}
+}
@@ -0,0 +1,208 @@
+/**
+ * Axway Appcelerator Titanium - ti.identity
+ * Copyright (c) 2017 by Axway. All Rights Reserved.
+ * Licensed under the terms of the Apache Public License
+ * Please see the LICENSE included with this distribution for details.
+ */
+package ti.identity;
+
+import android.os.Handler;
+import android.os.Looper;
+import androidx.biometric.BiometricPrompt;
+import androidx.fragment.app.FragmentActivity;
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import org.appcelerator.titanium.TiApplication;
+
+/**
+ * Keeps one BiometricPrompt per activity and forwards its callbacks to whoever
+ * started the current authentication.
+ *
+ * A BiometricPrompt binds its callback on construction, so the prompt is created with
+ * a forwarding callback and the actual listener is swapped in for every authentication.
+ * Items authenticate in parallel, so authentications are queued and the next one is
+ * only shown once the current one succeeded or ended with an error.
+ */
+public class SharedBiometricPrompt
+{
+	private static WeakReference<FragmentActivity> activityReference;
+	private static BiometricPrompt prompt;
+	private static ExecutorService promptExecutor;
+	private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+	// authentications waiting for the prompt and the one it currently shows
+	private static final ArrayDeque<Request> pending = new ArrayDeque<Request>();
+	private static Request active;
+
+	private static class Request
+	{
+		final BiometricPrompt.AuthenticationCallback callback;
+		final BiometricPrompt.PromptInfo promptInfo;
+		final BiometricPrompt.CryptoObject cryptoObject;
+
+		Request(BiometricPrompt.AuthenticationCallback callback, BiometricPrompt.PromptInfo promptInfo,
+				BiometricPrompt.CryptoObject cryptoObject)
+		{
+			this.callback = callback;
+			this.promptInfo = promptInfo;
+			this.cryptoObject = cryptoObject;
+		}
+	}
+
+	private static final Runnable showNext = new Runnable() {
+		@Override
+		public void run()
+		{
+			showNext();
+		}
+	};
+
+	private static final BiometricPrompt.AuthenticationCallback forwarder =
+		new BiometricPrompt.AuthenticationCallback() {
+			@Override
+			public void onAuthenticationError(int errorCode, CharSequence errString)
+			{
+				final Request request = finish();
+				if (request != null) {
+					request.callback.onAuthenticationError(errorCode, errString);
+				}
+				mainHandler.post(showNext);
+			}
+
+			@Override
+			public void onAuthenticationSucceeded(BiometricPrompt.AuthenticationResult result)
+			{
+				final Request request = finish();
+				if (request != null) {
+					request.callback.onAuthenticationSucceeded(result);
+				}
+				mainHandler.post(showNext);
+			}
+
+			@Override
+			public void onAuthenticationFailed()
+			{
+				final Request request;
+				synchronized (SharedBiometricPrompt.class)
+				{
+					request = active;
+				}
+				if (request != null) {
+					request.callback.onAuthenticationFailed();
+				}
+			}
+		};
+
+	/**
+	 * End the current authentication, the prompt is free for the next one.
+	 */
+	private static synchronized Request finish()
+	{
+		final Request request = active;
+		active = null;
+		return request;
+	}
+
+	private static synchronized BiometricPrompt getPrompt()
+	{
+		final FragmentActivity activity = (FragmentActivity) TiApplication.getAppCurrentActivity();
+		final FragmentActivity current = activityReference != null ? activityReference.get() : null;
+		final ExecutorService executor = IdentityExecutor.getPromptExecutor();
+
+		// the executor is bound on construction as well, so recreate after a shutdown
+		if (prompt == null || current != activity || promptExecutor != executor) {
+			prompt = new BiometricPrompt(activity, executor, forwarder);
+			promptExecutor = executor;
+			activityReference = new WeakReference<FragmentActivity>(activity);
+		}
+		return prompt;
+	}
+
+	public static void authenticate(final BiometricPrompt.AuthenticationCallback callback,
+									final BiometricPrompt.PromptInfo promptInfo,
+									final BiometricPrompt.CryptoObject cryptoObject)
+	{
+		// the prompt is shown through a fragment, which has to be done on the main thread
+		if (Looper.myLooper() != Looper.getMainLooper()) {
+			mainHandler.post(new Runnable() {
+				@Override
+				public void run()
+				{
+					authenticate(callback, promptInfo, cryptoObject);
+				}
+			});
+			return;
+		}
+
+		synchronized (SharedBiometricPrompt.class)
+		{
+			pending.add(new Request(callback, promptInfo, cryptoObject));
+		}
+		showNext();
+	}
+
+	/**
+	 * Show the next queued authentication unless one is shown already, on the main thread.
+	 */
+	private static void showNext()
+	{
+		final BiometricPrompt biometricPrompt;
+		final Request request;
+		synchronized (SharedBiometricPrompt.class)
+		{
+			if (active != null || pending.isEmpty()) {
+				return;
+			}
+			biometricPrompt = getPrompt();
+			request = pending.poll();
+			active = request;
+		}
+		if (request.cryptoObject != null) {
+			biometricPrompt.authenticate(request.promptInfo, request.cryptoObject);
+		} else {
+			biometricPrompt.authenticate(request.promptInfo);
+		}
+	}
+
+	/**
+	 * Create the prompt of the current activity ahead of the first authentication.
+	 */
+	public static void prepare()
+	{
+		mainHandler.post(new Runnable() {
+			@Override
+			public void run()
+			{
+				if (TiApplication.getAppCurrentActivity() instanceof FragmentActivity) {
+					getPrompt();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Drop the prompt, queued and current authentications end with ERROR_CANCELED.
+	 */
+	public static void release()
+	{
+		final List<Request> cancelled = new ArrayList<Request>();
+		synchronized (SharedBiometricPrompt.class)
+		{
+			prompt = null;
+			promptExecutor = null;
+			activityReference = null;
+			if (active != null) {
+				cancelled.add(active);
+				active = null;
+			}
+			cancelled.addAll(pending);
+			pending.clear();
+		}
+		for (Request request : cancelled) {
+			request.callback.onAuthenticationError(BiometricPrompt.ERROR_CANCELED, "authentication was cancelled");
+		}
+	}
+}
@@ -7,10 +7,16 @@
 package ti.identity;
 
 import android.app.Activity;
-import android.content.pm.PackageManager;
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
 import android.os.Build;
+import android.os.Looper;
+import android.security.keystore.KeyProperties;
 import java.lang.Override;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import org.appcelerator.kroll.KrollDict;
 import org.appcelerator.kroll.KrollFunction;
 import org.appcelerator.kroll.KrollModule;
@@ -32,6 +38,9 @@ public class TitaniumIdentityModule extends KrollModule
 	public static final String PROPERTY_REASON_TEXT = "reasonText";
 	public static final String PROPERTY_CANCEL_TITLE = "cancelTitle";
 	public static final String PROPERTY_CONFIRMATION = "confirmationRequired";
+	public static final String PROPERTY_ITEMS = "items";
+	public static final String PROPERTY_VALUES = "values";
+	public static final String PROPERTY_DURABILITY = "durability";
 
 	@Kroll.constant
 	public static final int SUCCESS = 0;
@@ -66,18 +75,39 @@ public class TitaniumIdentityModule extends KrollModule
 	@Kroll.constant
 	public static final int ACCESS_CONTROL_TOUCH_ID_CURRENT_SET = KeychainItemProxy.ACCESS_CONTROL_TOUCH_ID_CURRENT_SET;
 
+	@Kroll.constant
+	public static final int STORAGE_FILE = KeychainItemProxy.STORAGE_FILE;
+	@Kroll.constant
+	public static final int STORAGE_VAULT = KeychainItemProxy.STORAGE_VAULT;
+
+	@Kroll.constant
+	public static final int DURABILITY_STRICT = KeychainWriter.DURABILITY_STRICT;
+	@Kroll.constant
+	public static final int DURABILITY_GROUPED = KeychainWriter.DURABILITY_GROUPED;
+	@Kroll.constant
+	public static final int DURABILITY_RELAXED = KeychainWriter.DURABILITY_RELAXED;
+
+	@Kroll.constant
+	public static final int BACKPRESSURE_BLOCK = IdentityExecutor.BACKPRESSURE_BLOCK;
+	@Kroll.constant
+	public static final int BACKPRESSURE_REJECT = IdentityExecutor.BACKPRESSURE_REJECT;
+	@Kroll.constant
+	public static final int BACKPRESSURE_DROP_OLDEST_READ = IdentityExecutor.BACKPRESSURE_DROP_OLDEST_READ;
+	@Kroll.constant
+	public static final int BACKPRESSURE_CALLER_RUNS = IdentityExecutor.BACKPRESSURE_CALLER_RUNS;
+
 	@Kroll.constant
 	public static final int ERROR_TOUCH_ID_LOCKOUT = 7;
 	@Kroll.constant
-	public static final int ERROR_AUTHENTICATION_FAILED = -1;
+	public static final int ERROR_AUTHENTICATION_FAILED = KeychainEngine.ERROR_AUTHENTICATION_FAILED;
 	@Kroll.constant
 	public static final int ERROR_TOUCH_ID_NOT_ENROLLED = -2;
 	@Kroll.constant
 	public static final int ERROR_TOUCH_ID_NOT_AVAILABLE = -3;
 	@Kroll.constant
-	public static final int ERROR_PASSCODE_NOT_SET = -4;
+	public static final int ERROR_PASSCODE_NOT_SET = KeychainEngine.ERROR_PASSCODE_NOT_SET;
 	@Kroll.constant
-	public static final int ERROR_KEY_PERMANENTLY_INVALIDATED = -5;
+	public static final int ERROR_KEY_PERMANENTLY_INVALIDATED = KeychainEngine.ERROR_KEY_PERMANENTLY_INVALIDATED;
 
 	@Kroll.constant
 	public static final int FINGERPRINT_ACQUIRED_PARTIAL = 1;
@@ -93,15 +123,36 @@ public class TitaniumIdentityModule extends KrollModule
 	protected FingerPrintHelper mfingerprintHelper;
 	private Throwable fingerprintHelperException;
 
+	private static boolean trimCallbacksRegistered;
+
+	// cached plaintext must not survive memory pressure
+	private static final ComponentCallbacks2 trimCallbacks = new ComponentCallbacks2() {
+		@Override
+		public void onTrimMemory(int level)
+		{
+			PlaintextCache.clear();
+		}
+
+		@Override
+		public void onLowMemory()
+		{
+			PlaintextCache.clear();
+		}
+
+		@Override
+		public void onConfigurationChanged(Configuration configuration)
+		{
+		}
+	};
+
 	private static int authenticationPolicy = AUTHENTICATION_POLICY_BIOMETRICS;
+	private static volatile int durability = DURABILITY_STRICT;
 	public static String reason = "Biometric authentication";
 	public static String reasonSubtitle = "";
 	public static String reasonText = "";
 	public static String negativeButtonText = "Cancel";
 	public static boolean confirmationRequired = true;
 
-	PackageManager pm;
-
 	public TitaniumIdentityModule()
 	{
 		super();
@@ -122,8 +173,99 @@ public class TitaniumIdentityModule extends KrollModule
 		authenticationPolicy = policy;
 	}
 
+	@Kroll.getProperty
+	@Kroll.method
+	public int getDurability()
+	{
+		return durability;
+	}
+
+	/**
+	 * Durability of keychain items created afterwards without their own durability.
+	 */
+	@Kroll.setProperty
+	@Kroll.method
+	public void setDurability(int mode)
+	{
+		if (!KeychainWriter.isValid(mode)) {
+			throw new IllegalArgumentException("invalid durability: " + mode);
+		}
+		durability = mode;
+	}
+
+	@Kroll.getProperty
+	@Kroll.method
+	public int getBackpressure()
+	{
+		return IdentityExecutor.getBackpressure();
+	}
+
+	/**
+	 * How keychain operations are handled while the crypto worker queue is full.
+	 */
+	@Kroll.setProperty
+	@Kroll.method
+	public void setBackpressure(int mode)
+	{
+		if (!IdentityExecutor.isValidBackpressure(mode)) {
+			throw new IllegalArgumentException("invalid backpressure: " + mode);
+		}
+		IdentityExecutor.setBackpressure(mode);
+	}
+
+	@Kroll.getProperty
+	@Kroll.method
+	public int getPlaintextCacheSize()
+	{
+		return PlaintextCache.getMaximumSize();
+	}
+
+	@Kroll.setProperty
+	@Kroll.method
+	public void setPlaintextCacheSize(int bytes)
+	{
+		PlaintextCache.setMaximumSize(bytes);
+	}
+
+	@Kroll.getProperty
+	@Kroll.method
+	public int getTraceCapacity()
+	{
+		return OperationTracer.getCapacity();
+	}
+
+	/**
+	 * Start tracing operations into a new buffer of the given number of spans, 0 stops tracing.
+	 */
+	@Kroll.setProperty
+	@Kroll.method
+	public void setTraceCapacity(int spans)
+	{
+		OperationTracer.setCapacity(spans);
+	}
+
+	/**
+	 * The traced spans as Chrome trace event JSON.
+	 */
+	@Kroll.method
+	public String dumpTrace()
+	{
+		return OperationTracer.dump();
+	}
+
+	protected static int getDefaultDurability()
+	{
+		return durability;
+	}
+
 	private void init()
 	{
+		IdentityExecutor.setUiThread(Looper.getMainLooper().getThread());
+		final TiApplication application = TiApplication.getInstance();
+		if (!trimCallbacksRegistered && application != null) {
+			application.registerComponentCallbacks(trimCallbacks);
+			trimCallbacksRegistered = true;
+		}
 		if (Build.VERSION.SDK_INT >= 23) {
 			try {
 				mfingerprintHelper = new FingerPrintHelper(this);
@@ -176,6 +318,145 @@ public class TitaniumIdentityModule extends KrollModule
 		}
 	}
 
+	@Kroll.method
+	public void saveMany(HashMap params)
+	{
+		startBatch(KeychainItemProxy.EVENT_SAVE, params, true);
+	}
+
+	@Kroll.method
+	public void readMany(HashMap params)
+	{
+		startBatch(KeychainItemProxy.EVENT_READ, params, false);
+	}
+
+	@Kroll.method
+	public void resetMany(HashMap params)
+	{
+		startBatch(KeychainItemProxy.EVENT_RESET, params, false);
+	}
+
+	private void startBatch(String event, HashMap params, boolean withValues)
+	{
+		if (params == null || !(params.get(PROPERTY_ITEMS) instanceof Object[])) {
+			throw new IllegalArgumentException("'" + PROPERTY_ITEMS + "' must be an array of keychain items");
+		}
+		Object[] itemList = (Object[]) params.get(PROPERTY_ITEMS);
+		Object[] valueList = null;
+		if (withValues) {
+			if (!(params.get(PROPERTY_VALUES) instanceof Object[])
+				|| ((Object[]) params.get(PROPERTY_VALUES)).length != itemList.length) {
+				throw new IllegalArgumentException("'" + PROPERTY_VALUES + "' must be an array matching '"
+												   + PROPERTY_ITEMS + "'");
+			}
+			valueList = (Object[]) params.get(PROPERTY_VALUES);
+		}
+
+		List<KeychainEngine> items = new ArrayList<KeychainEngine>();
+		List<byte[]> values = withValues ? new ArrayList<byte[]>() : null;
+		for (int i = 0; i < itemList.length; i++) {
+			if (!(itemList[i] instanceof KeychainItemProxy)) {
+				throw new IllegalArgumentException("'" + PROPERTY_ITEMS + "' must only contain keychain items");
+			}
+			items.add(((KeychainItemProxy) itemList[i]).getEngine());
+			if (withValues) {
+				values.add(KeychainItemProxy.toBytes(valueList[i] != null ? valueList[i] : ""));
+			}
+		}
+
+		KrollFunction callback = null;
+		if (params.get("callback") instanceof KrollFunction) {
+			callback = (KrollFunction) params.get("callback");
+		}
+		new KeychainBatch(event, items, callback, getKrollObject()).start(values);
+	}
+
+	/**
+	 * Whether items of the given identifiers are stored, answered from the item catalog on the
+	 * executor and reported in one callback.
+	 */
+	@Kroll.method
+	public void fetchExistence(HashMap params)
+	{
+		if (params == null || !(params.get(PROPERTY_ITEMS) instanceof Object[])) {
+			throw new IllegalArgumentException("'" + PROPERTY_ITEMS + "' must be an array of identifiers");
+		}
+		if (!(params.get("callback") instanceof KrollFunction)) {
+			throw new IllegalArgumentException("'callback' must be a function");
+		}
+
+		final List<String> identifiers = new ArrayList<String>();
+		for (Object item : (Object[]) params.get(PROPERTY_ITEMS)) {
+			final String identifier = TiConvert.toString(item, null);
+			if (identifier == null || identifier.isEmpty()) {
+				throw new IllegalArgumentException("'" + PROPERTY_ITEMS + "' must only contain identifiers");
+			}
+			identifiers.add(identifier);
+		}
+		final KrollFunction callback = (KrollFunction) params.get("callback");
+		IdentityExecutor.get().execute(new Runnable() {
+			@Override
+			public void run()
+			{
+				final ItemCatalog catalog = getCatalog();
+				final KrollDict exists = new KrollDict();
+				for (String identifier : identifiers) {
+					exists.put(identifier, catalog.contains(identifier));
+				}
+				KrollDict result = new KrollDict();
+				result.put("success", true);
+				result.put("code", 0);
+				result.put("exists", exists);
+				callback.callAsync(getKrollObject(), result);
+			}
+		});
+	}
+
+	@Kroll.method
+	public void provisionKeys(HashMap params)
+	{
+		if (params == null || !(params.get(PROPERTY_ITEMS) instanceof Object[])) {
+			throw new IllegalArgumentException("'" + PROPERTY_ITEMS + "' must be an array of identifiers");
+		}
+
+		List<KeyProvider.Spec> specs = new ArrayList<KeyProvider.Spec>();
+		for (Object item : (Object[]) params.get(PROPERTY_ITEMS)) {
+			String identifier = null;
+			String[] cipher = new String[] { KeyProperties.KEY_ALGORITHM_AES, KeyProperties.BLOCK_MODE_CBC,
+											 KeyProperties.ENCRYPTION_PADDING_PKCS7 };
+			int accessControlMode = 0;
+			int authenticationValidity = 0;
+
+			if (item instanceof HashMap) {
+				HashMap options = (HashMap) item;
+				identifier = TiConvert.toString(options.get(KeychainItemProxy.PROPERTY_IDENTIFIER), null);
+				if (options.containsKey(KeychainItemProxy.PROPERTY_CIPHER)) {
+					String[] parts = TiConvert.toString(options.get(KeychainItemProxy.PROPERTY_CIPHER), "").split("/");
+					if (parts.length == 3) {
+						cipher = parts;
+					}
+				}
+				accessControlMode =
+					TiConvert.toInt(options.get(KeychainItemProxy.PROPERTY_ACCESS_CONTROL_MODE), accessControlMode);
+				authenticationValidity = TiConvert.toInt(
+					options.get(KeychainItemProxy.PROPERTY_AUTHENTICATION_VALIDITY), authenticationValidity);
+			} else {
+				identifier = TiConvert.toString(item, null);
+			}
+			if (identifier == null || identifier.isEmpty()) {
+				throw new IllegalArgumentException("'" + PROPERTY_ITEMS + "' must only contain identifiers");
+			}
+			specs.add(new KeyProvider.Spec(identifier, cipher[0], cipher[1], cipher[2], accessControlMode,
+											  authenticationValidity));
+		}
+
+		KrollFunction callback = null;
+		if (params.get("callback") instanceof KrollFunction) {
+			callback = (KrollFunction) params.get("callback");
+		}
+		KeyProvisioner.provision(specs, callback, getKrollObject());
+	}
+
 	@Kroll.method
 	public HashMap deviceCanAuthenticate()
 	{
@@ -215,55 +496,189 @@ public class TitaniumIdentityModule extends KrollModule
 	@Kroll.getProperty
 	public boolean hasFingerprintScanner()
 	{
-		if (pm == null) {
-			pm = TiApplication.getAppCurrentActivity().getPackageManager();
-		}
-		if (pm.hasSystemFeature(PackageManager.FEATURE_FINGERPRINT)) {
-			return true;
-		}
-		return false;
+		return DeviceCapabilities.get().hasFingerprintScanner();
 	}
+
 	@Kroll.getProperty
 	public boolean hasFaceScanner()
 	{
-		if (pm == null) {
-			pm = TiApplication.getAppCurrentActivity().getPackageManager();
-		}
-		if (pm.hasSystemFeature(PackageManager.FEATURE_FACE)) {
-			return true;
-		}
-		return false;
+		return DeviceCapabilities.get().hasFaceScanner();
 	}
 
 	@Kroll.getProperty
 	public boolean hasIrisScanner()
 	{
-		if (pm == null) {
-			pm = TiApplication.getAppCurrentActivity().getPackageManager();
-		}
-		if (Build.VERSION.SDK_INT >= 29 && pm.hasSystemFeature(PackageManager.FEATURE_IRIS)) {
-			return true;
+		return DeviceCapabilities.get().hasIrisScanner();
+	}
+
+	/**
+	 * The cached capabilities of the device and the age of the snapshot in milliseconds.
+	 */
+	@Kroll.method
+	public KrollDict getCapabilities()
+	{
+		return DeviceCapabilities.get().toKrollDict();
+	}
+
+	@Kroll.method
+	public KrollDict refreshCapabilities()
+	{
+		return DeviceCapabilities.refresh().toKrollDict();
+	}
+
+	@Override
+	public void onResume(Activity activity)
+	{
+		super.onResume(activity);
+
+		// enrollments and the passcode may have been changed in the settings meanwhile
+		DeviceCapabilities.invalidate();
+		if (mfingerprintHelper != null) {
+			mfingerprintHelper.expirePrepared();
 		}
-		return false;
 	}
 
 	@Override
 	public void onPause(Activity activity)
 	{
 		super.onPause(activity);
+
+		// decrypted values and data keys must not outlive the app being in the foreground
+		PlaintextCache.clear();
+		EnvelopeKeys.clear();
 		if (mfingerprintHelper != null) {
 			mfingerprintHelper.stopListening();
 		}
 	}
 
+	@Override
+	public void onDestroy(Activity activity)
+	{
+		SharedBiometricPrompt.release();
+		ItemCatalog.flushInstance();
+		IdentityExecutor.shutdown();
+		super.onDestroy(activity);
+	}
+
+	@Kroll.method
+	public KrollDict getDiagnostics()
+	{
+		KrollDict diagnostics = new KrollDict();
+		diagnostics.put("executor", new KrollDict(IdentityExecutor.getStatistics()));
+		diagnostics.put("keyCache", KeyCache.getStatistics());
+		diagnostics.put("durability", toKrollDict(KeychainWriter.getStatistics()));
+		diagnostics.put("queue", new KrollDict(OperationQueue.getTotalStatistics()));
+		diagnostics.put("plaintextCache", new KrollDict(PlaintextCache.getStatistics()));
+		diagnostics.put("envelope", new KrollDict(EnvelopeKeys.getStatistics()));
+		return diagnostics;
+	}
+
+	private static ItemCatalog getCatalog()
+	{
+		return ItemCatalog.getInstance(TiApplication.getInstance().getFilesDir());
+	}
+
+	/**
+	 * Identifiers of the stored items, answered from the item catalog without scanning storage.
+	 */
+	@Kroll.method
+	public Object[] listItems()
+	{
+		return getCatalog().list().toArray();
+	}
+
+	@Kroll.method
+	public int countItems()
+	{
+		return getCatalog().count();
+	}
+
+	/**
+	 * Size, timestamps, cipher and access control mode of a stored item, null if it is not stored.
+	 */
+	@Kroll.method
+	public KrollDict getItemMetadata(String identifier)
+	{
+		final ItemCatalog.Entry entry = getCatalog().get(identifier);
+		return entry != null ? new KrollDict(entry.toMap()) : null;
+	}
+
+	/**
+	 * Latency histograms of the stages of keychain operations, in total and per identifier.
+	 */
+	@Kroll.method
+	public KrollDict getMetrics()
+	{
+		return toKrollDict(LatencyMetrics.getAllStatistics());
+	}
+
+	@Kroll.method
+	public void resetMetrics()
+	{
+		LatencyMetrics.reset();
+	}
+
+	/**
+	 * Convert statistics of the engine, including nested ones.
+	 */
+	@SuppressWarnings("unchecked")
+	protected static KrollDict toKrollDict(Map<String, Object> map)
+	{
+		KrollDict dict = new KrollDict();
+		for (Map.Entry<String, Object> entry : map.entrySet()) {
+			Object value = entry.getValue();
+			dict.put(entry.getKey(), value instanceof Map ? toKrollDict((Map<String, Object>) value) : value);
+		}
+		return dict;
+	}
+
 	@Kroll.method
 	public void invalidate()
 	{
+		EnvelopeKeys.clear();
+		KeychainEngine.expirePrepared();
 		if (mfingerprintHelper != null) {
+			mfingerprintHelper.expirePrepared();
 			mfingerprintHelper.stopListening();
 		}
 	}
 
+	/**
+	 * Load the key store, obtain the authentication key, initialize its cipher and create the
+	 * prompt in the background, so a following authenticate only shows the prompt.
+	 */
+	@Kroll.method
+	public void prepare(@Kroll.argument(optional = true) final KrollFunction callback)
+	{
+		if (mfingerprintHelper == null) {
+			init();
+		}
+		final FingerPrintHelper helper = mfingerprintHelper;
+		IdentityExecutor.get().execute(new Runnable() {
+			@Override
+			public void run()
+			{
+				KrollDict result = new KrollDict();
+				try {
+					KeyCache.getKeyStore();
+					DeviceCapabilities.get();
+					if (helper != null) {
+						helper.prepare();
+					}
+					result.put("success", true);
+					result.put("code", 0);
+				} catch (Exception e) {
+					result.put("success", false);
+					result.put("code", -1);
+					result.put("error", e.getMessage());
+				}
+				if (callback != null) {
+					callback.callAsync(getKrollObject(), result);
+				}
+			}
+		});
+	}
+
 	@Override
 	public String getApiName()
 	{
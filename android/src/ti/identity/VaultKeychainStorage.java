@@ -0,0 +1,537 @@
+/**
+ * Axway Appcelerator Titanium - ti.identity
+ * Copyright (c) 2017 by Axway. All Rights Reserved.
+ * Licensed under the terms of the Apache Public License
+ * Please see the LICENSE included with this distribution for details.
+ */
+package ti.identity;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+
+/**
+ * Storage backend keeping all items in a single append-only record file.
+ *
+ * Every write appends a record and every delete appends a tombstone, an in-memory index
+ * maps identifiers to the offset of their latest data. Records carry a checksum, so a
+ * record torn by a crash is detected when the vault is opened again. Records are streamed
+ * into space reserved for them while later records are appended, so a torn record with an
+ * intact header is skipped, anything after the last readable record is truncated.
+ * Once enough of the file is occupied by overwritten or deleted records, the live
+ * records are rewritten to a new file which atomically replaces the vault.
+ *
+ * Large records are memory mapped when read.
+ *
+ * Record layout: magic (4), type (1), identifier length (2), identifier,
+ * data length (4), data, CRC32 of type to data (4).
+ */
+public class VaultKeychainStorage implements KeychainStorage
+{
+	private static final String FILE_NAME = "ti.identity.vault";
+	private static final String COMPACT_SUFFIX = ".compact";
+
+	private static final int MAGIC = 0x5469566b;
+	private static final byte TYPE_WRITE = 1;
+	private static final byte TYPE_DELETE = 2;
+	private static final int RECORD_OVERHEAD = 4 + 1 + 2 + 4 + 4;
+
+	private static final long COMPACTION_MIN_GARBAGE = 64 * 1024;
+	private static final int MAP_THRESHOLD = 256 * 1024;
+
+	private static VaultKeychainStorage instance;
+
+	private static class Entry
+	{
+		final long offset;
+		final int length;
+		final int recordLength;
+
+		Entry(long offset, int length, int recordLength)
+		{
+			this.offset = offset;
+			this.length = length;
+			this.recordLength = recordLength;
+		}
+	}
+
+	private final File file;
+	private final File compactFile;
+	private final Executor compactor;
+
+	private Map<String, Entry> index = new HashMap<String, Entry>();
+	private RandomAccessFile randomAccessFile;
+	private FileChannel channel;
+	private long size;
+	private long garbage;
+	private long syncedSize;
+	private int stagedRecords;
+
+	// start of the records being streamed, syncs only cover the vault before the first one
+	private final TreeSet<Long> writing = new TreeSet<Long>();
+	private boolean compactionScheduled;
+
+	public VaultKeychainStorage(File file, Executor compactor) throws IOException
+	{
+		this.file = file;
+		this.compactFile = new File(file.getPath() + COMPACT_SUFFIX);
+		this.compactor = compactor;
+
+		// an interrupted compaction never replaced the vault, discard it
+		compactFile.delete();
+
+		randomAccessFile = new RandomAccessFile(file, "rw");
+		channel = randomAccessFile.getChannel();
+		recover();
+	}
+
+	/**
+	 * Whether a vault was created in a directory, without opening it.
+	 */
+	public static boolean exists(File directory)
+	{
+		return new File(directory, FILE_NAME).exists();
+	}
+
+	/**
+	 * Obtain the shared vault of a directory.
+	 */
+	public static synchronized VaultKeychainStorage getInstance(File directory, Executor compactor)
+		throws IOException
+	{
+		if (instance == null) {
+			instance = new VaultKeychainStorage(new File(directory, FILE_NAME), compactor);
+		}
+		return instance;
+	}
+
+	/**
+	 * Rebuild the index from the records, truncating anything after the last valid record.
+	 */
+	private void recover() throws IOException
+	{
+		final long length = channel.size();
+		final DataInputStream in =
+			new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(0))));
+		long position = 0;
+
+		index.clear();
+		garbage = 0;
+		try {
+			while (position + RECORD_OVERHEAD <= length) {
+				if (in.readInt() != MAGIC) {
+					break;
+				}
+				final byte type = in.readByte();
+				final byte[] id = new byte[in.readUnsignedShort()];
+				in.readFully(id);
+				final int dataLength = in.readInt();
+				final long recordLength = (long) RECORD_OVERHEAD + id.length + dataLength;
+				if (dataLength < 0 || position + recordLength > length) {
+					break;
+				}
+				final byte[] data = new byte[dataLength];
+				in.readFully(data);
+				if (in.readInt() != checksum(type, id, data)) {
+					// a record still being streamed when the vault was closed
+					garbage += recordLength;
+					position += recordLength;
+					continue;
+				}
+
+				final String identifier = new String(id, StandardCharsets.UTF_8);
+				final Entry previous;
+				if (type == TYPE_WRITE) {
+					previous = index.put(identifier, new Entry(position + RECORD_OVERHEAD - 4 + id.length, dataLength,
+															   (int) recordLength));
+				} else {
+					previous = index.remove(identifier);
+					garbage += recordLength;
+				}
+				if (previous != null) {
+					garbage += previous.recordLength;
+				}
+				position += recordLength;
+			}
+		} catch (EOFException e) {
+			// torn record at the end of the vault
+		}
+
+		if (position < length) {
+			channel.truncate(position);
+		}
+		size = position;
+		syncedSize = position;
+	}
+
+	private static int checksum(byte type, byte[] id, byte[] data)
+	{
+		final CRC32 crc = new CRC32();
+		crc.update(type);
+		crc.update(ByteBuffer.allocate(2).putShort((short) id.length).array());
+		crc.update(id);
+		crc.update(ByteBuffer.allocate(4).putInt(data.length).array());
+		crc.update(data);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Encode a record, the checksum covers the same bytes as {@link #checksum}.
+	 */
+	private static ByteBuffer encode(byte type, byte[] id, ByteBuffer data)
+	{
+		final int length = data.remaining();
+		final ByteBuffer record = ByteBuffer.allocate(RECORD_OVERHEAD + id.length + length);
+		record.putInt(MAGIC).put(type).putShort((short) id.length).put(id).putInt(length).put(data);
+		final CRC32 crc = new CRC32();
+		crc.update(record.array(), 4, record.position() - 4);
+		record.putInt((int) crc.getValue());
+		record.flip();
+		return record;
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+	{
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+
+	private ByteBuffer readData(FileChannel source, Entry entry) throws IOException
+	{
+		// records are never modified in place, so a mapping stays valid after compaction
+		if (entry.length >= MAP_THRESHOLD) {
+			return source.map(FileChannel.MapMode.READ_ONLY, entry.offset, entry.length);
+		}
+
+		final ByteBuffer buffer = ByteBuffer.allocate(entry.length);
+		long position = entry.offset;
+		while (buffer.hasRemaining()) {
+			final int read = source.read(buffer, position);
+			if (read < 0) {
+				throw new EOFException("vault record is truncated");
+			}
+			position += read;
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private void append(byte type, String identifier, ByteBuffer data) throws IOException
+	{
+		final byte[] id = identifier.getBytes(StandardCharsets.UTF_8);
+		if (id.length > 0xffff) {
+			throw new IOException("identifier is too long");
+		}
+		final int length = data.remaining();
+		final ByteBuffer record = encode(type, id, data);
+		final int recordLength = record.remaining();
+		writeFully(channel, record, size);
+
+		final Entry previous;
+		if (type == TYPE_WRITE) {
+			previous = index.put(identifier, new Entry(size + RECORD_OVERHEAD - 4 + id.length, length, recordLength));
+		} else {
+			previous = index.remove(identifier);
+			garbage += recordLength;
+		}
+		if (previous != null) {
+			garbage += previous.recordLength;
+		}
+		size += recordLength;
+		scheduleCompaction();
+	}
+
+	@Override
+	public synchronized ByteBuffer read(String identifier) throws IOException
+	{
+		final Entry entry = index.get(identifier);
+		if (entry == null) {
+			throw new FileNotFoundException(identifier);
+		}
+		return readData(channel, entry);
+	}
+
+	/**
+	 * Stream a record into the vault. Its space is reserved up front, so the data is produced and
+	 * written without holding the vault. The record only becomes part of the index once it is
+	 * committed, compaction is held back while records are staged.
+	 */
+	@Override
+	public Staged stage(String identifier, long length, Producer producer) throws IOException
+	{
+		final byte[] id = identifier.getBytes(StandardCharsets.UTF_8);
+		if (id.length > 0xffff || length > Integer.MAX_VALUE - RECORD_OVERHEAD - id.length) {
+			throw new IOException("record is too large");
+		}
+		final ByteBuffer header = ByteBuffer.allocate(RECORD_OVERHEAD - 4 + id.length);
+		header.putInt(MAGIC).put(TYPE_WRITE).putShort((short) id.length).put(id).putInt((int) length);
+		final CRC32 crc = new CRC32();
+		crc.update(header.array(), 4, header.position() - 4);
+		header.flip();
+
+		final int recordLength = RECORD_OVERHEAD + id.length + (int) length;
+		final FileChannel target;
+		final long start;
+		synchronized (this)
+		{
+			target = channel;
+			start = size;
+			size += recordLength;
+			stagedRecords++;
+			writing.add(start);
+		}
+
+		// an incomplete record is skipped on recovery
+		boolean staged = false;
+		try {
+			long position = start;
+			writeFully(target, header, position);
+			position += header.capacity();
+
+			long written = 0;
+			ByteBuffer data;
+			while ((data = producer.next()) != null) {
+				final int count = data.remaining();
+				if (written + count > length) {
+					throw new IOException("keychain data has an unexpected length");
+				}
+				if (data.hasArray()) {
+					crc.update(data.array(), data.arrayOffset() + data.position(), count);
+				} else {
+					final byte[] bytes = new byte[count];
+					data.duplicate().get(bytes);
+					crc.update(bytes);
+				}
+				writeFully(target, data, position);
+				written += count;
+				position += count;
+			}
+			if (written != length) {
+				throw new IOException("keychain data has an unexpected length");
+			}
+			final ByteBuffer checksum = ByteBuffer.allocate(4).putInt((int) crc.getValue());
+			checksum.flip();
+			writeFully(target, checksum, position);
+			staged = true;
+		} finally {
+			synchronized (this)
+			{
+				writing.remove(start);
+				if (!staged) {
+					stagedRecords--;
+					garbage += recordLength;
+					scheduleCompaction();
+				}
+			}
+		}
+		return new StagedRecord(identifier, new Entry(start + header.capacity(), (int) length, recordLength),
+								start + recordLength);
+	}
+
+	/**
+	 * Flush the vault up to the given size, appends flushed by a concurrent call are not flushed again.
+	 */
+	private void sync(long end) throws IOException
+	{
+		final FileChannel target;
+		final long syncing;
+		synchronized (this)
+		{
+			if (syncedSize >= end) {
+				return;
+			}
+			target = channel;
+			syncing = writing.isEmpty() ? size : writing.first();
+		}
+		target.force(false);
+		synchronized (this)
+		{
+			syncedSize = Math.max(syncedSize, syncing);
+		}
+	}
+
+	private class StagedRecord implements Staged
+	{
+		final String identifier;
+		final Entry entry;
+		final long end;
+		boolean done;
+
+		StagedRecord(String identifier, Entry entry, long end)
+		{
+			this.identifier = identifier;
+			this.entry = entry;
+			this.end = end;
+		}
+
+		@Override
+		public void sync() throws IOException
+		{
+			VaultKeychainStorage.this.sync(end);
+		}
+
+		@Override
+		public void commit()
+		{
+			synchronized (VaultKeychainStorage.this)
+			{
+				if (done) {
+					return;
+				}
+				done = true;
+				stagedRecords--;
+
+				final Entry previous = index.put(identifier, entry);
+				if (previous != null) {
+					garbage += previous.recordLength;
+				}
+				scheduleCompaction();
+			}
+		}
+
+		/**
+		 * The record is valid on disk, so the previous state is appended again
+		 * to keep recovery from restoring the discarded data.
+		 */
+		@Override
+		public void abort()
+		{
+			synchronized (VaultKeychainStorage.this)
+			{
+				if (done) {
+					return;
+				}
+				done = true;
+				stagedRecords--;
+				garbage += entry.recordLength;
+
+				final Entry previous = index.get(identifier);
+				try {
+					if (previous != null) {
+						append(TYPE_WRITE, identifier, readData(channel, previous));
+					} else {
+						append(TYPE_DELETE, identifier, ByteBuffer.allocate(0));
+					}
+				} catch (IOException e) {
+					// nothing more to do, the vault is not writable
+				}
+			}
+		}
+	}
+
+	@Override
+	public boolean isSyncShared()
+	{
+		return true;
+	}
+
+	@Override
+	public synchronized boolean exists(String identifier)
+	{
+		return index.containsKey(identifier);
+	}
+
+	@Override
+	public synchronized List<String> list()
+	{
+		return new ArrayList<String>(index.keySet());
+	}
+
+	@Override
+	public synchronized boolean delete(String identifier)
+	{
+		if (!index.containsKey(identifier)) {
+			return false;
+		}
+		try {
+			append(TYPE_DELETE, identifier, ByteBuffer.allocate(0));
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private void scheduleCompaction()
+	{
+		if (compactionScheduled || stagedRecords > 0 || garbage < COMPACTION_MIN_GARBAGE || garbage * 2 < size) {
+			return;
+		}
+		compactionScheduled = true;
+		compactor.execute(new Runnable() {
+			@Override
+			public void run()
+			{
+				synchronized (VaultKeychainStorage.this)
+				{
+					compactionScheduled = false;
+					try {
+						compact();
+					} catch (IOException e) {
+						// keep the current vault, compaction is attempted again on a later write
+						compactFile.delete();
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Rewrite the live records into a new file and atomically replace the vault with it.
+	 */
+	public synchronized void compact() throws IOException
+	{
+		// staged records are not part of the index yet and would be lost
+		if (stagedRecords > 0) {
+			return;
+		}
+
+		final Map<String, Entry> compacted = new HashMap<String, Entry>();
+		final FileOutputStream out = new FileOutputStream(compactFile);
+		long position = 0;
+		try {
+			final FileChannel target = out.getChannel();
+			for (Map.Entry<String, Entry> entry : index.entrySet()) {
+				final byte[] id = entry.getKey().getBytes(StandardCharsets.UTF_8);
+				final ByteBuffer record = encode(TYPE_WRITE, id, readData(channel, entry.getValue()));
+				final int recordLength = record.remaining();
+				writeFully(target, record, position);
+				compacted.put(entry.getKey(),
+							  new Entry(position + RECORD_OVERHEAD - 4 + id.length, entry.getValue().length, recordLength));
+				position += recordLength;
+			}
+			target.force(true);
+		} finally {
+			out.close();
+		}
+
+		if (!compactFile.renameTo(file)) {
+			throw new IOException("could not replace vault");
+		}
+		channel.close();
+		randomAccessFile.close();
+		randomAccessFile = new RandomAccessFile(file, "rw");
+		channel = randomAccessFile.getChannel();
+
+		index = compacted;
+		size = position;
+		syncedSize = position;
+		garbage = 0;
+	}
+}
@@ -47,6 +47,291 @@ describe('ti.identity.KeychainItem', () => {
 		expect(KeychainItem.apiName).toBe('Ti.Identity.KeychainItem');
 	});
 
+	if (!isIOS) {
+		it('.authenticationValidity', () => {
+			expect(KeychainItem.authenticationValidity).toEqual(0);
+			const item = Identity.createKeychainItem({ identifier: 'session', authenticationValidity: 30 });
+			expect(item.authenticationValidity).toEqual(30);
+		});
+
+		it('.storage', () => {
+			expect(KeychainItem.storage).toEqual(Identity.STORAGE_FILE);
+		});
+
+		it('saves and reads values in the vault', finish => {
+			const item = Identity.createKeychainItem({ identifier: 'vault', storage: Identity.STORAGE_VAULT });
+			function read(obj) {
+				item.removeEventListener('read', read);
+				try {
+					expect(obj.success).toEqual(true);
+					expect(obj.value).toEqual('v4ult_s3cr3t');
+					finish();
+				} catch (err) {
+					finish(err);
+				}
+			}
+			function save() {
+				item.removeEventListener('save', save);
+				item.addEventListener('read', read);
+				item.read();
+			}
+			item.addEventListener('save', save);
+			item.save('v4ult_s3cr3t');
+		});
+
+		it('saves and reads binary values', finish => {
+			const item = Identity.createKeychainItem({ identifier: 'binary' });
+			const buffer = Ti.createBuffer({ length: 4 });
+			buffer[0] = 0;
+			buffer[1] = 1;
+			buffer[2] = 254;
+			buffer[3] = 255;
+			function read(obj) {
+				item.removeEventListener('read', read);
+				try {
+					expect(obj.success).toEqual(true);
+					expect(obj.value.length).toEqual(4);
+					expect(obj.value.toBase64()).toEqual(Ti.Utils.base64encode(buffer.toBlob()).text);
+					finish();
+				} catch (err) {
+					finish(err);
+				}
+			}
+			function save() {
+				item.removeEventListener('save', save);
+				item.addEventListener('read', read);
+				item.readBinary();
+			}
+			item.addEventListener('save', save);
+			item.save(buffer);
+		});
+
+		it('coalesces queued saves and reads', finish => {
+			const item = Identity.createKeychainItem({ identifier: 'coalesced', coalesce: true });
+			let saves = 0;
+			expect(item.coalesce).toEqual(true);
+			function save(obj) {
+				if (obj.success) {
+					saves++;
+				}
+			}
+			function read(obj) {
+				item.removeEventListener('save', save);
+				item.removeEventListener('read', read);
+				try {
+					expect(saves).toEqual(2);
+					expect(obj.success).toEqual(true);
+					expect(obj.value).toEqual('second');
+					finish();
+				} catch (err) {
+					finish(err);
+				}
+			}
+			item.addEventListener('save', save);
+			item.addEventListener('read', read);
+			item.save('first');
+			item.save('second');
+			item.read();
+		});
+
+		it('answers repeated reads from the plaintext cache', finish => {
+			const item = Identity.createKeychainItem({ identifier: 'cached', cacheTimeout: 60 });
+			expect(item.cacheTimeout).toEqual(60);
+			function second(obj) {
+				item.removeEventListener('read', second);
+				try {
+					expect(obj.success).toEqual(true);
+					expect(obj.value).toEqual('c4ched');
+					expect(Identity.getDiagnostics().plaintextCache.hits).toBeGreaterThan(0);
+					finish();
+				} catch (err) {
+					finish(err);
+				}
+			}
+			function first() {
+				item.removeEventListener('read', first);
+				item.addEventListener('read', second);
+				item.read();
+			}
+			function save() {
+				item.removeEventListener('save', save);
+				item.addEventListener('read', first);
+				item.read();
+			}
+			item.addEventListener('save', save);
+			item.save('c4ched');
+		});
+
+		it('shares the data key of a namespace', finish => {
+			const first = Identity.createKeychainItem({ identifier: 'envelope1', namespace: 'shared' });
+			const second = Identity.createKeychainItem({ identifier: 'envelope2', namespace: 'shared' });
+			expect(first.namespace).toEqual('shared');
+			function read(obj) {
+				second.removeEventListener('read', read);
+				try {
+					expect(obj.success).toEqual(true);
+					expect(obj.value).toEqual('env2');
+					expect(Identity.getDiagnostics().envelope.hits).toBeGreaterThan(0);
+					finish();
+				} catch (err) {
+					finish(err);
+				}
+			}
+			function saveSecond(obj) {
+				second.removeEventListener('save', saveSecond);
+				expect(obj.success).toEqual(true);
+				second.addEventListener('read', read);
+				second.read();
+			}
+			function saveFirst(obj) {
+				first.removeEventListener('save', saveFirst);
+				expect(obj.success).toEqual(true);
+				second.addEventListener('save', saveSecond);
+				second.save('env2');
+			}
+			first.addEventListener('save', saveFirst);
+			first.save('env1');
+		});
+
+		it('shares a namespace between items with different ciphers', finish => {
+			const cbc = Identity.createKeychainItem({ identifier: 'envelope3', namespace: 'mixed' });
+			const gcm = Identity.createKeychainItem({
+				identifier: 'envelope4',
+				namespace: 'mixed',
+				cipher: 'AES/GCM/NoPadding'
+			});
+			Promise.all([ cbc.save('cbc'), gcm.save('gcm'), cbc.read(), gcm.read() ]).then(results => {
+				try {
+					expect(results[0].success).toEqual(true);
+					expect(results[1].success).toEqual(true);
+					expect(results[2].value).toEqual('cbc');
+					expect(results[3].value).toEqual('gcm');
+					finish();
+				} catch (err) {
+					finish(err);
+				}
+			}, finish);
+		});
+
+		it('reads a prepared value', finish => {
+			const item = Identity.createKeychainItem({ identifier: 'prepared' });
+			function read(obj) {
+				item.removeEventListener('read', read);
+				try {
+					expect(obj.success).toEqual(true);
+					expect(obj.value).toEqual('warm');
+					finish();
+				} catch (err) {
+					finish(err);
+				}
+			}
+			function prepare(obj) {
+				item.removeEventListener('prepare', prepare);
+				expect(obj.success).toEqual(true);
+				item.addEventListener('read', read);
+				item.read();
+			}
+			function save() {
+				item.removeEventListener('save', save);
+				item.addEventListener('prepare', prepare);
+				item.prepare();
+			}
+			item.addEventListener('save', save);
+			item.save('warm');
+		});
+
+		it('resolves each operation with its own result', finish => {
+			const item = Identity.createKeychainItem({ identifier: 'promised' });
+			Promise.all([ item.save('first'), item.read(), item.update('second'), item.read() ]).then(results => {
+				try {
+					expect(results[0].success).toEqual(true);
+					expect(results[1].value).toEqual('first');
+					expect(results[2].success).toEqual(true);
+					expect(results[3].value).toEqual('second');
+					finish();
+				} catch (err) {
+					finish(err);
+				}
+			}, finish);
+		});
+
+		it('passes the result to a per-call callback instead of the event', finish => {
+			const item = Identity.createKeychainItem({ identifier: 'called' });
+			function fired() {
+				finish(new Error('save event fired for a call with callback'));
+			}
+			item.addEventListener('save', fired);
+			item.save('value', e => {
+				item.removeEventListener('save', fired);
+				try {
+					expect(e.success).toEqual(true);
+					finish();
+				} catch (err) {
+					finish(err);
+				}
+			});
+		});
+
+		it('migrates a value to its migration cipher', finish => {
+			const item = Identity.createKeychainItem({ identifier: 'migrated' });
+			const migrating = Identity.createKeychainItem({ identifier: 'migrated', migrationCipher: 'AES/GCM/NoPadding' });
+			expect(migrating.migrationCipher).toEqual('AES/GCM/NoPadding');
+			function migrated(obj) {
+				migrating.removeEventListener('read', migrated);
+				try {
+					expect(obj.success).toEqual(true);
+					expect(obj.value).toEqual('m1grate');
+					finish();
+				} catch (err) {
+					finish(err);
+				}
+			}
+			function read(obj) {
+				migrating.removeEventListener('read', read);
+				expect(obj.success).toEqual(true);
+				migrating.addEventListener('read', migrated);
+				migrating.read();
+			}
+			function save() {
+				item.removeEventListener('save', save);
+				migrating.addEventListener('read', read);
+				migrating.read();
+			}
+			item.addEventListener('save', save);
+			item.save('m1grate');
+		});
+
+		it('reads segmented values in chunks', finish => {
+			const item = Identity.createKeychainItem({ identifier: 'segmented', segmentSize: 1024 });
+			const buffer = Ti.createBuffer({ length: 2500 });
+			const offsets = [];
+			expect(item.segmentSize).toEqual(1024);
+			function chunk(obj) {
+				offsets.push(obj.offset);
+			}
+			function read(obj) {
+				item.removeEventListener('chunk', chunk);
+				item.removeEventListener('read', read);
+				try {
+					expect(obj.success).toEqual(true);
+					expect(obj.length).toEqual(2500);
+					expect(offsets).toEqual([ 0, 1024, 2048 ]);
+					finish();
+				} catch (err) {
+					finish(err);
+				}
+			}
+			function save() {
+				item.removeEventListener('save', save);
+				item.addEventListener('chunk', chunk);
+				item.addEventListener('read', read);
+				item.readChunks();
+			}
+			item.addEventListener('save', save);
+			item.save(buffer);
+		});
+	}
+
 	describe('methods', () => {
 		describe('#save()', () => {
 			it('is a Function', () => {
@@ -176,6 +461,20 @@ describe('ti.identity.KeychainItem', () => {
 			});
 		});
 
+		if (!isIOS) {
+			describe('#getQueueStatistics()', () => {
+				it('is a Function', () => {
+					expect(KeychainItem.getQueueStatistics).toEqual(jasmine.any(Function));
+				});
+
+				it('returns depth and wait times', () => {
+					const statistics = KeychainItem.getQueueStatistics();
+					expect(statistics.depth).toEqual(jasmine.any(Number));
+					expect(statistics.averageWaitTime).toEqual(jasmine.any(Number));
+				});
+			});
+		}
+
 		describe('#fetchExistence()', () => {
 			it('is a Function', () => {
 				expect(KeychainItem.fetchExistence).toEqual(jasmine.any(Function));
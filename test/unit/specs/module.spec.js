@@ -154,6 +154,50 @@ describe('ti.identity', () => {
 				});
 			});
 
+			if (!isIOS) {
+				describe('STORAGE_*', () => {
+					it('STORAGE_FILE', () => {
+						expect(Identity.STORAGE_FILE).toEqual(jasmine.any(Number));
+					});
+
+					it('STORAGE_VAULT', () => {
+						expect(Identity.STORAGE_VAULT).toEqual(jasmine.any(Number));
+					});
+				});
+
+				describe('DURABILITY_*', () => {
+					it('DURABILITY_STRICT', () => {
+						expect(Identity.DURABILITY_STRICT).toEqual(jasmine.any(Number));
+					});
+
+					it('DURABILITY_GROUPED', () => {
+						expect(Identity.DURABILITY_GROUPED).toEqual(jasmine.any(Number));
+					});
+
+					it('DURABILITY_RELAXED', () => {
+						expect(Identity.DURABILITY_RELAXED).toEqual(jasmine.any(Number));
+					});
+				});
+
+				describe('BACKPRESSURE_*', () => {
+					it('BACKPRESSURE_BLOCK', () => {
+						expect(Identity.BACKPRESSURE_BLOCK).toEqual(jasmine.any(Number));
+					});
+
+					it('BACKPRESSURE_REJECT', () => {
+						expect(Identity.BACKPRESSURE_REJECT).toEqual(jasmine.any(Number));
+					});
+
+					it('BACKPRESSURE_DROP_OLDEST_READ', () => {
+						expect(Identity.BACKPRESSURE_DROP_OLDEST_READ).toEqual(jasmine.any(Number));
+					});
+
+					it('BACKPRESSURE_CALLER_RUNS', () => {
+						expect(Identity.BACKPRESSURE_CALLER_RUNS).toEqual(jasmine.any(Number));
+					});
+				});
+			}
+
 			describe('ACCESS_CONTROL_*', () => {
 				it('ACCESS_CONTROL_USER_PRESENCE', () => {
 					expect(Identity.ACCESS_CONTROL_USER_PRESENCE).toEqual(jasmine.any(Number));
@@ -198,6 +242,20 @@ describe('ti.identity', () => {
 				});
 			});
 
+			if (!isIOS) {
+				describe('durability', () => {
+					it('defaults to DURABILITY_STRICT', () => {
+						expect(Identity.durability).toEqual(Identity.DURABILITY_STRICT);
+					});
+				});
+
+				describe('backpressure', () => {
+					it('defaults to BACKPRESSURE_BLOCK', () => {
+						expect(Identity.backpressure).toEqual(Identity.BACKPRESSURE_BLOCK);
+					});
+				});
+			}
+
 			if (isIOS) {
 				describe('biometryType', () => {
 					it('defaults to BIOMETRY_TYPE_NONE', () => {
@@ -231,6 +289,273 @@ describe('ti.identity', () => {
 				});
 			});
 
+			if (!isIOS) {
+				describe('#saveMany()', () => {
+					it('is a Function', () => {
+						expect(Identity.saveMany).toEqual(jasmine.any(Function));
+					});
+
+					it('saves every item and reports one result', finish => {
+						const items = [
+							Identity.createKeychainItem({ identifier: 'batch_a' }),
+							Identity.createKeychainItem({ identifier: 'batch_b' })
+						];
+						Identity.saveMany({
+							items,
+							values: [ 'value_a', 'value_b' ],
+							callback: e => {
+								try {
+									expect(e.success).toEqual(true);
+									expect(e.results.length).toEqual(2);
+									expect(e.results[0].identifier).toEqual('batch_a');
+									expect(e.results[1].identifier).toEqual('batch_b');
+									finish();
+								} catch (err) {
+									finish(err);
+								}
+							}
+						});
+					});
+				});
+
+				describe('#readMany()', () => {
+					it('is a Function', () => {
+						expect(Identity.readMany).toEqual(jasmine.any(Function));
+					});
+
+					it('reads every item and reports one result', finish => {
+						const items = [
+							Identity.createKeychainItem({ identifier: 'batch_a' }),
+							Identity.createKeychainItem({ identifier: 'batch_b' })
+						];
+						Identity.readMany({
+							items,
+							callback: e => {
+								try {
+									expect(e.success).toEqual(true);
+									expect(e.results[0].value).toEqual('value_a');
+									expect(e.results[1].value).toEqual('value_b');
+									finish();
+								} catch (err) {
+									finish(err);
+								}
+							}
+						});
+					});
+				});
+
+				describe('#resetMany()', () => {
+					it('is a Function', () => {
+						expect(Identity.resetMany).toEqual(jasmine.any(Function));
+					});
+
+					it('resets every item and reports one result', finish => {
+						const items = [
+							Identity.createKeychainItem({ identifier: 'batch_a' }),
+							Identity.createKeychainItem({ identifier: 'batch_b' })
+						];
+						Identity.resetMany({
+							items,
+							callback: e => {
+								try {
+									expect(e.success).toEqual(true);
+									expect(e.results.length).toEqual(2);
+									finish();
+								} catch (err) {
+									finish(err);
+								}
+							}
+						});
+					});
+				});
+			}
+
+			if (!isIOS) {
+				describe('#provisionKeys()', () => {
+					it('is a Function', () => {
+						expect(Identity.provisionKeys).toEqual(jasmine.any(Function));
+					});
+
+					it('provisions every key and reports one result', finish => {
+						Identity.provisionKeys({
+							items: [ 'provision_a', { identifier: 'provision_b', cipher: 'AES/CBC/PKCS7Padding' } ],
+							callback: e => {
+								try {
+									expect(e.success).toEqual(true);
+									expect(e.results.length).toEqual(2);
+									expect(e.results[1].identifier).toEqual('provision_b');
+									finish();
+								} catch (err) {
+									finish(err);
+								}
+							}
+						});
+					});
+				});
+
+				describe('#getDiagnostics()', () => {
+					it('is a Function', () => {
+						expect(Identity.getDiagnostics).toEqual(jasmine.any(Function));
+					});
+
+					it('returns executor statistics', () => {
+						const diagnostics = Identity.getDiagnostics();
+						expect(diagnostics.executor.threads).toEqual(jasmine.any(Number));
+						expect(diagnostics.executor.queueDepth).toEqual(jasmine.any(Number));
+						expect(diagnostics.executor.utilization).toEqual(jasmine.any(Number));
+						expect(diagnostics.keyCache.hits).toEqual(jasmine.any(Number));
+						expect(diagnostics.keyCache.misses).toEqual(jasmine.any(Number));
+						expect(diagnostics.durability.strict.writes).toEqual(jasmine.any(Number));
+						expect(diagnostics.queue.depth).toEqual(jasmine.any(Number));
+						expect(diagnostics.plaintextCache.hitRate).toEqual(jasmine.any(Number));
+					});
+				});
+
+				describe('#getMetrics()', () => {
+					it('is a Function', () => {
+						expect(Identity.getMetrics).toEqual(jasmine.any(Function));
+					});
+
+					it('records the stages of an operation', finish => {
+						const item = Identity.createKeychainItem({ identifier: 'metrics' });
+						item.addEventListener('save', function save() {
+							item.removeEventListener('save', save);
+							try {
+								const metrics = Identity.getMetrics();
+								expect(metrics.total.storageWrite.count).toBeGreaterThan(0);
+								expect(metrics.items.metrics.cipherInit.p99).toEqual(jasmine.any(Number));
+								Identity.resetMetrics();
+								expect(Identity.getMetrics().total.storageWrite).not.toBeDefined();
+								finish();
+							} catch (err) {
+								finish(err);
+							}
+						});
+						item.save('measured');
+					});
+				});
+
+				describe('#listItems()', () => {
+					it('is a Function', () => {
+						expect(Identity.listItems).toEqual(jasmine.any(Function));
+					});
+
+					it('lists saved items until they are reset', finish => {
+						const item = Identity.createKeychainItem({ identifier: 'cataloged' });
+						function reset() {
+							item.removeEventListener('reset', reset);
+							try {
+								expect(Identity.listItems()).not.toContain('cataloged');
+								expect(Identity.getItemMetadata('cataloged')).toBeNull();
+								finish();
+							} catch (err) {
+								finish(err);
+							}
+						}
+						function save() {
+							item.removeEventListener('save', save);
+							try {
+								expect(Identity.listItems()).toContain('cataloged');
+								expect(Identity.countItems()).toBeGreaterThan(0);
+								const metadata = Identity.getItemMetadata('cataloged');
+								expect(metadata.size).toBeGreaterThan(0);
+								expect(metadata.cipher).toEqual('AES/CBC/PKCS7Padding');
+								expect(metadata.accessControlMode).toEqual(0);
+							} catch (err) {
+								return finish(err);
+							}
+							item.addEventListener('reset', reset);
+							item.reset();
+						}
+						item.addEventListener('save', save);
+						item.save('listed');
+					});
+				});
+
+				describe('#fetchExistence()', () => {
+					it('is a Function', () => {
+						expect(Identity.fetchExistence).toEqual(jasmine.any(Function));
+					});
+
+					it('reports several identifiers in one callback', finish => {
+						const item = Identity.createKeychainItem({ identifier: 'existing' });
+						item.addEventListener('save', function save() {
+							item.removeEventListener('save', save);
+							Identity.fetchExistence({
+								items: [ 'existing', 'missing' ],
+								callback: e => {
+									try {
+										expect(e.success).toEqual(true);
+										expect(e.exists.existing).toEqual(true);
+										expect(e.exists.missing).toEqual(false);
+										finish();
+									} catch (err) {
+										finish(err);
+									}
+								}
+							});
+						});
+						item.save('exists');
+					});
+				});
+
+				describe('#prepare()', () => {
+					it('is a Function', () => {
+						expect(Identity.prepare).toEqual(jasmine.any(Function));
+					});
+
+					it('reports when prepared', finish => {
+						Identity.prepare(e => {
+							try {
+								expect(e.success).toEqual(true);
+								finish();
+							} catch (err) {
+								finish(err);
+							}
+						});
+					});
+				});
+
+				describe('#getCapabilities()', () => {
+					it('is a Function', () => {
+						expect(Identity.getCapabilities).toEqual(jasmine.any(Function));
+					});
+
+					it('serves the snapshot until it is refreshed', () => {
+						const refreshed = Identity.refreshCapabilities();
+						const capabilities = Identity.getCapabilities();
+						expect(capabilities.canAuthenticate).toEqual(refreshed.canAuthenticate);
+						expect(capabilities.hasFingerprintScanner).toEqual(Identity.hasFingerprintScanner);
+						expect(capabilities.age).toBeGreaterThanOrEqual(refreshed.age);
+					});
+				});
+
+				describe('#dumpTrace()', () => {
+					it('is a Function', () => {
+						expect(Identity.dumpTrace).toEqual(jasmine.any(Function));
+					});
+
+					it('exports traced operations', finish => {
+						const item = Identity.createKeychainItem({ identifier: 'traced' });
+						Identity.traceCapacity = 64;
+						item.addEventListener('save', function save() {
+							item.removeEventListener('save', save);
+							try {
+								const trace = JSON.parse(Identity.dumpTrace());
+								const spans = trace.traceEvents.filter(e => e.args.identifier === 'traced');
+								expect(spans.some(e => e.name === 'operation')).toEqual(true);
+								Identity.traceCapacity = 0;
+								expect(JSON.parse(Identity.dumpTrace()).traceEvents.length).toEqual(0);
+								finish();
+							} catch (err) {
+								finish(err);
+							}
+						});
+						item.save('traced');
+					});
+				});
+			}
+
 			describe('#invalidate()', () => {
 				it('is a Function', () => {
 					expect(Identity.invalidate).toEqual(jasmine.any(Function));